@@ -0,0 +1,69 @@
+package com.cody.modsync;
+
+// How many files DownloadEngine fetches at once, adjusted AIMD style while it runs:
+// the limit goes up by one whenever the last window's throughput beat the one before (more parallel requests
+// paid off), and is halved when a request fails, as errors and timeouts mostly mean the server or link is saturated.
+final class AdaptiveConcurrency {
+    // Throughput is compared over windows at least this long, so one quick file doesn't swing the limit
+    private static final long MIN_WINDOW_NANOS = 500_000_000L;
+    private static final double IMPROVEMENT = 1.05;
+
+    private final int max;
+    private double limit;
+    private int active;
+
+    private long bytes;
+    private long windowStart = System.nanoTime();
+    private long windowBytes;
+    private double lastRate;
+
+    AdaptiveConcurrency(int initial, int max) {
+        this.max = Math.max(1, max);
+        this.limit = Math.max(1, Math.min(initial, this.max));
+    }
+
+    synchronized void acquire() throws InterruptedException {
+        while (active >= (int) limit) {
+            wait();
+        }
+        active++;
+    }
+
+    synchronized void release() {
+        active--;
+        notifyAll();
+    }
+
+    synchronized void transferred(long count) {
+        bytes += count;
+    }
+
+    // Called when a file finishes
+    synchronized void completed() {
+        long now = System.nanoTime();
+        if (now - windowStart < MIN_WINDOW_NANOS) {
+            return;
+        }
+        double rate = (bytes - windowBytes) * 1e9 / (now - windowStart);
+        if (rate > lastRate * IMPROVEMENT) {
+            limit = Math.min(max, limit + 1);
+            notifyAll();
+        }
+        lastRate = rate;
+        windowStart = now;
+        windowBytes = bytes;
+    }
+
+    // Called when a request fails and will be retried
+    synchronized void failed() {
+        limit = Math.max(1, limit / 2);
+        // The window after a cut is measured afresh
+        lastRate = 0;
+        windowStart = System.nanoTime();
+        windowBytes = bytes;
+    }
+
+    synchronized int limit() {
+        return (int) limit;
+    }
+}
@@ -0,0 +1,196 @@
+package com.cody.modsync;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+// A store of downloaded files shared by every game directory on the machine, named by their SHA-256.
+// Files are hashed again and handed out as hardlinks (or copies where links aren't possible), so a jar any instance
+// already has never has to be downloaded again. Last use is tracked in index.txt, and the least recently used files are
+// evicted once the store grows past its size limit. Index updates happen under a file lock, so several
+// instances can sync at the same time; file contents need no lock because every name maps to one content.
+public class ContentStore implements Closeable {
+    private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+    // FileLock is per process, so threads of this process take turns first
+    private static final Object PROCESS_LOCK = new Object();
+
+    private record Usage(long size, long lastUsed) {}
+
+    private final Path dir;
+    private final long maxBytes;
+    private final Map<String, Long> used = new ConcurrentHashMap<>();
+
+    public ContentStore(Path dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    public static Path defaultDir() {
+        return Path.of(System.getProperty("user.home"), ".modsync", "store");
+    }
+
+    // Puts the stored copy of entry at target, returning false if the store doesn't have it.
+    // A stored file that no longer matches its name is evicted, so it gets downloaded again.
+    public boolean materialize(Manifest.Entry entry, Path target) throws IOException {
+        Path stored = dir.resolve(entry.sha256());
+        try {
+            if (Files.size(stored) != entry.size()) {
+                return false;
+            }
+            if (!HashIndex.sha256(stored).equals(entry.sha256())) {
+                Files.deleteIfExists(stored);
+                return false;
+            }
+            seal(stored);
+            Files.deleteIfExists(target);
+            linkOrCopy(stored, target);
+        } catch (NoSuchFileException e) {
+            // Not stored, or evicted just now
+            return false;
+        }
+        used.put(entry.sha256(), entry.size());
+        return true;
+    }
+
+    // Adds a file that has been verified to match entry
+    public void add(Manifest.Entry entry, Path file) throws IOException {
+        Path stored = dir.resolve(entry.sha256());
+        if (!Files.exists(stored)) {
+            Files.createDirectories(dir);
+            Path temp = dir.resolve(entry.sha256() + "." + ProcessHandle.current().pid() + "." + Thread.currentThread().getId() + ".tmp");
+            Files.deleteIfExists(temp);
+            linkOrCopy(file, temp);
+            seal(temp);
+            try {
+                Files.move(temp, stored, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // Another instance stored the same content first
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        used.put(entry.sha256(), entry.size());
+    }
+
+    private static void linkOrCopy(Path source, Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+        } catch (NoSuchFileException e) {
+            throw e;
+        } catch (UnsupportedOperationException | IOException e) {
+            // Different file systems, or no hardlink support
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Stored files are never written to, and read-only keeps editors from changing one through a link to it.
+    // Only where there are POSIX permissions: a read-only file on Windows can't be deleted or replaced.
+    private static void seal(Path file) throws IOException {
+        PosixFileAttributeView view = Files.getFileAttributeView(file, PosixFileAttributeView.class);
+        if (view != null) {
+            view.setPermissions(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.GROUP_READ, PosixFilePermission.OTHERS_READ));
+        }
+    }
+
+    // Records this run's usage and evicts the least recently used files beyond the size limit
+    @Override
+    public void close() throws IOException {
+        if (used.isEmpty()) {
+            return;
+        }
+        Files.createDirectories(dir);
+        synchronized (PROCESS_LOCK) {
+            try (FileChannel lockChannel = FileChannel.open(dir.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = lockChannel.lock();
+                try {
+                    Map<String, Usage> index = readIndex();
+                    long now = System.currentTimeMillis();
+                    used.forEach((sha256, size) -> index.put(sha256, new Usage(size, now)));
+                    used.clear();
+                    evict(index);
+                    writeIndex(index);
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    private void evict(Map<String, Usage> index) throws IOException {
+        long total = index.values().stream().mapToLong(Usage::size).sum();
+        if (total <= maxBytes) {
+            return;
+        }
+
+        List<Map.Entry<String, Usage>> oldestFirst = new ArrayList<>(index.entrySet());
+        oldestFirst.sort(Comparator.comparingLong(entry -> entry.getValue().lastUsed()));
+        for (Map.Entry<String, Usage> entry : oldestFirst) {
+            if (total <= maxBytes) {
+                break;
+            }
+            // Game directories linked to this file keep their copy, only the store's name goes away
+            Files.deleteIfExists(dir.resolve(entry.getKey()));
+            index.remove(entry.getKey());
+            total -= entry.getValue().size();
+        }
+    }
+
+    // Each line is "<sha256> <size> <last used millis>". Stored files missing from it count as never used.
+    private Map<String, Usage> readIndex() throws IOException {
+        Map<String, Usage> index = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (SHA256.matcher(name).matches()) {
+                    index.put(name, new Usage(Files.size(file), 0));
+                }
+            }
+        }
+
+        Path indexFile = dir.resolve("index.txt");
+        if (Files.exists(indexFile)) {
+            for (String line : Files.readAllLines(indexFile)) {
+                String[] parts = line.split(" ");
+                if (parts.length == 3 && index.containsKey(parts[0])) {
+                    try {
+                        index.put(parts[0], new Usage(Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+                    } catch (NumberFormatException e) {
+                        // Keep the entry as never used
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    private void writeIndex(Map<String, Usage> index) throws IOException {
+        List<String> lines = new ArrayList<>(index.size());
+        index.forEach((sha256, usage) -> lines.add(sha256 + " " + usage.size() + " " + usage.lastUsed()));
+        Path temp = dir.resolve("index.txt.tmp");
+        Files.write(temp, lines);
+        try {
+            Files.move(temp, dir.resolve("index.txt"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, dir.resolve("index.txt"), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
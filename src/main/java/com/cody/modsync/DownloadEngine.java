@@ -0,0 +1,696 @@
+package com.cody.modsync;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Downloads files with a bounded number of parallel requests over the shared HTTP client.
+// Each file is written to <name>.part in the parts directory and only moved into place once complete.
+// A failed attempt is retried with exponential backoff, resuming the .part file with a Range request,
+// which also works across runs because the server's validator is kept next to it.
+// Hashed entries are checked against the manifest while they stream in; a mismatch only retries that file.
+// With several mirrors, each attempt goes to the best ranked one that hasn't failed this file yet, and large
+// hashed files are split into chunks that every healthy mirror fetches from in parallel.
+public class DownloadEngine implements Closeable {
+    private static final int MAX_ATTEMPTS = 6;
+    // Files at least this big are fetched in chunks when there is more than one mirror
+    private static final long SEGMENTED_MIN_BYTES = 16L * 1024 * 1024;
+    private static final long CHUNK_BYTES = 4L * 1024 * 1024;
+    private static final int MAX_SEGMENT_SOURCES = 4;
+    // The adaptive limit may grow to twice the configured threads, up to this
+    private static final int MAX_THREADS = 16;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    public interface Listener {
+        // Called from download threads once per finished file
+        void fileDone(String name, int done, int total);
+
+        // Called from download threads as bytes arrive. Files taken from local copies are reported in one go when done.
+        default void transferred(long bytes) {}
+
+        default void fileFinished(FileResult result) {}
+    }
+
+    // How a file was obtained: "network", "segmented" (in chunks from several mirrors), "delta" (rebuilt from an old
+    // jar) or "store"
+    public record FileResult(String name, String source, long size, long networkBytes, long latencyMillis, long durationMillis, int retries) {}
+
+    // Per-file bookkeeping for FileResult
+    private static final class Transfer {
+        final Manifest.Entry entry;
+        final Listener listener;
+        final AdaptiveConcurrency concurrency;
+        final TokenBucket bandwidth;
+        final long started = System.nanoTime();
+        String source = "network";
+        long networkBytes;
+        long latencyMillis = -1;
+        int retries;
+
+        Transfer(Manifest.Entry entry, Listener listener, AdaptiveConcurrency concurrency, TokenBucket bandwidth) {
+            this.entry = entry;
+            this.listener = listener;
+            this.concurrency = concurrency;
+            this.bandwidth = bandwidth;
+        }
+
+        // Called after each read, so waiting here for the bandwidth limit holds off the next read
+        void received(long bytes) {
+            if (bandwidth != null) {
+                bandwidth.take(bytes);
+            }
+            synchronized (this) {
+                networkBytes += bytes;
+            }
+            concurrency.transferred(bytes);
+            listener.transferred(bytes);
+        }
+
+        void failed() {
+            retries++;
+            concurrency.failed();
+        }
+
+        FileResult finish(Path file) throws IOException {
+            long size = Files.size(file);
+            // Keeps byte progress whole for files that were (partly) copied rather than downloaded
+            if (size > networkBytes) {
+                listener.transferred(size - networkBytes);
+            }
+            long durationMillis = (System.nanoTime() - started) / 1_000_000;
+            return new FileResult(entry.name(), source, size, networkBytes, latencyMillis, durationMillis, retries);
+        }
+    }
+
+    private final ExecutorService executor;
+    private final int threads;
+    private final int maxThreads;
+    // Chunk fetches of segmented downloads; separate so they can't starve behind the file tasks that wait on them
+    private final ExecutorService segments;
+    private final Path partsDir;
+    private final HashIndex hashes;
+    private final ContentStore store;
+    private TokenBucket bandwidth;
+    private String remoteDir = "mods/";
+
+    public DownloadEngine(int threads, Path partsDir) {
+        this(threads, partsDir, null, null);
+    }
+
+    // Verified hashes are recorded in the index, if given, so the next launch doesn't read the files again.
+    // With a store, files it already holds are taken from it and new downloads are added to it.
+    // threads is where the number of parallel downloads starts, see AdaptiveConcurrency.
+    public DownloadEngine(int threads, Path partsDir, HashIndex hashes, ContentStore store) {
+        this.threads = threads;
+        this.maxThreads = Math.max(threads, Math.min(MAX_THREADS, threads * 2));
+        AtomicInteger threadId = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(maxThreads, runnable -> {
+            Thread thread = new Thread(runnable, "ModSync download " + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.segments = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "ModSync segment " + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.partsDir = partsDir;
+        this.hashes = hashes;
+        this.store = store;
+    }
+
+    // Caps the combined rate of all downloads of this engine and of any other engine given the same bucket; null means
+    // no limit
+    DownloadEngine limitBandwidth(TokenBucket bandwidth) {
+        this.bandwidth = bandwidth;
+        return this;
+    }
+
+    // Where on the server entry names are resolved from, "mods/" unless set; "" for names that are full paths
+    public DownloadEngine fromDirectory(String remoteDir) {
+        this.remoteDir = remoteDir;
+        return this;
+    }
+
+    // Where partial downloads live, kept out of mods/ so Forge and the diff never see them
+    public static Path partsDir(File gameDir) {
+        return gameDir.toPath().resolve(".modsync").resolve("downloads");
+    }
+
+    // Downloads every entry from <base>/mods/<name> into directory, failing as soon as any single file fails
+    public void downloadAll(URL base, Collection<Manifest.Entry> entries, Path directory, Listener listener) throws IOException {
+        downloadAll(Mirrors.single(base), entries, directory, JarDelta.Bases.NONE, listener);
+    }
+
+    // As above, from whichever mirrors serve best, and hashed entries are first tried as a delta against the given
+    // local jars
+    void downloadAll(Mirrors mirrors, Collection<Manifest.Entry> entries, Path directory, JarDelta.Bases deltaBases, Listener listener) throws IOException {
+        Batch batch = start(mirrors, directory, deltaBases, listener);
+        try {
+            batch.addAll(entries);
+        } catch (IOException | RuntimeException e) {
+            batch.cancel();
+            throw e;
+        }
+        batch.finish();
+    }
+
+    // Starts a batch that entries can be added to while the first ones are downloading
+    Batch start(Mirrors mirrors, Path directory, JarDelta.Bases deltaBases, Listener listener) throws IOException {
+        Files.createDirectories(partsDir);
+        return new Batch(mirrors, directory, deltaBases, listener);
+    }
+
+    // Files waiting are taken longest first: big jars start while there's other work left to overlap them with, instead
+    // of one starting last and setting the total time. Unknown sizes go last. A worker takes the next file only once
+    // the adaptive limit lets it, so the order is kept.
+    final class Batch {
+        private final Mirrors mirrors;
+        private final Path directory;
+        private final JarDelta.Bases deltaBases;
+        // Set once the server turns out to have no delta index, so the rest of the batch doesn't ask for one
+        private volatile boolean noDeltas;
+        private final Listener listener;
+        private final AdaptiveConcurrency concurrency = new AdaptiveConcurrency(threads, maxThreads);
+        private final Queue<Manifest.Entry> queue = new PriorityQueue<>(Comparator.comparingLong(Manifest.Entry::size).reversed());
+        private final List<Future<?>> workers = new ArrayList<>();
+        private final AtomicInteger done = new AtomicInteger();
+        // All guarded by this
+        private int total;
+        private boolean closed;
+        private Exception failure;
+
+        private Batch(Mirrors mirrors, Path directory, JarDelta.Bases deltaBases, Listener listener) {
+            this.mirrors = mirrors;
+            this.directory = directory;
+            this.deltaBases = deltaBases;
+            this.listener = listener;
+        }
+
+        void add(Manifest.Entry entry) throws IOException {
+            addAll(List.of(entry));
+        }
+
+        // Throws what a file failed with, if one already has, as the batch as a whole has failed then
+        void addAll(Collection<Manifest.Entry> entries) throws IOException {
+            if (entries.isEmpty()) {
+                return;
+            }
+            synchronized (this) {
+                if (failure != null) {
+                    throw failure instanceof IOException ioException ? ioException : new IOException(failure);
+                }
+                if (total == 0) {
+                    mirrors.probe(remoteDir + entries.iterator().next().name());
+                }
+                queue.addAll(entries);
+                total += entries.size();
+                // Workers that find nothing to do wait for more, so one per file is enough
+                while (workers.size() < Math.min(maxThreads, total)) {
+                    workers.add(executor.submit(this::work));
+                }
+                notifyAll();
+            }
+        }
+
+        // Waits for every file added, failing as soon as any single file fails
+        void finish() throws IOException {
+            List<Future<?>> started;
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+                started = new ArrayList<>(workers);
+            }
+
+            try {
+                for (Future<?> future : started) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                started.forEach(future -> future.cancel(true));
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException ioException) {
+                    throw ioException;
+                }
+                throw new IOException(cause);
+            } catch (InterruptedException e) {
+                started.forEach(future -> future.cancel(true));
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while downloading", e);
+            }
+        }
+
+        // Stops the batch without waiting, for when whatever was adding to it failed
+        void cancel() {
+            List<Future<?>> started;
+            synchronized (this) {
+                closed = true;
+                queue.clear();
+                notifyAll();
+                started = new ArrayList<>(workers);
+            }
+            started.forEach(future -> future.cancel(true));
+        }
+
+        synchronized int total() {
+            return total;
+        }
+
+        private Void work() throws Exception {
+            while (true) {
+                concurrency.acquire();
+                try {
+                    Manifest.Entry entry = next();
+                    if (entry == null) {
+                        return null;
+                    }
+                    Transfer transfer = new Transfer(entry, listener, concurrency, bandwidth);
+                    Path target = directory.resolve(entry.name());
+                    download(mirrors, transfer, target, this);
+                    listener.fileFinished(transfer.finish(target));
+                    listener.fileDone(entry.name(), done.incrementAndGet(), total());
+                    concurrency.completed();
+                } catch (Exception e) {
+                    fail(e);
+                    throw e;
+                } finally {
+                    concurrency.release();
+                }
+            }
+        }
+
+        // The next file to download, or null once the batch is closed and nothing is left
+        private synchronized Manifest.Entry next() throws InterruptedException {
+            while (queue.isEmpty() && !closed) {
+                wait();
+            }
+            return queue.poll();
+        }
+
+        // The whole batch fails, so nobody should start another file
+        private synchronized void fail(Exception e) {
+            if (failure == null) {
+                failure = e;
+            }
+            closed = true;
+            queue.clear();
+            notifyAll();
+        }
+    }
+
+    private void download(Mirrors mirrors, Transfer transfer, Path target, Batch batch) throws IOException, InterruptedException {
+        Manifest.Entry entry = transfer.entry;
+        String path = remoteDir + entry.name();
+        Path part = partsDir.resolve(entry.name() + ".part");
+        Path validator = partsDir.resolve(entry.name() + ".validator");
+        // Names from trees have directories in them
+        Files.createDirectories(part.getParent());
+
+        if (store != null && entry.hasHash() && store.materialize(entry, part)) {
+            transfer.source = "store";
+            commit(part, target, entry);
+            Files.deleteIfExists(validator);
+            return;
+        }
+
+        // A started full download is worth more than a delta, so only try one on a clean slate
+        if (entry.hasHash() && !batch.noDeltas && !batch.deltaBases.isEmpty() && !Files.exists(part)) {
+            try {
+                // The index comes from the server itself; the ranges can come from any mirror as the result is hashed
+                URI fileUri = Http.resolve(mirrors.best(Set.of()), path);
+                if (JarDelta.rebuild(Http.resolve(mirrors.primary(), "delta/" + entry.name()), fileUri, entry, batch.deltaBases, part, transfer::received)) {
+                    transfer.source = "delta";
+                    commit(part, target, entry);
+                    return;
+                }
+            } catch (HttpStatusException e) {
+                // A server without delta indexes has none for the other files either
+                if (e.status == 404) {
+                    batch.noDeltas = true;
+                }
+            } catch (IOException e) {
+                // Fall back to downloading the whole file
+            }
+            Files.deleteIfExists(part);
+        }
+
+        if (entry.hasHash() && entry.size() >= SEGMENTED_MIN_BYTES && mirrors.ranked().size() > 1 && !Files.exists(part)) {
+            try {
+                fetchSegmented(mirrors, transfer, part);
+                transfer.source = "segmented";
+                commit(part, target, entry);
+                return;
+            } catch (IOException e) {
+                // Fall back to one mirror at a time
+                Files.deleteIfExists(part);
+            }
+        }
+
+        Set<String> tried = new HashSet<>();
+        for (int attempt = 1; ; attempt++) {
+            URL mirror = mirrors.best(tried);
+            tried.add(mirror.toString());
+            long started = System.nanoTime();
+            long receivedBefore = transfer.networkBytes;
+            try {
+                fetch(Http.resolve(mirror, path), transfer, part, validator);
+                mirrors.succeeded(mirror, transfer.latencyMillis, transfer.networkBytes - receivedBefore, System.nanoTime() - started);
+                break;
+            } catch (IOException e) {
+                mirrors.failed(mirror);
+                // A mirror missing the file is no reason to give up while others haven't been asked
+                boolean failOver = !mirrors.allTried(tried);
+                if (attempt >= MAX_ATTEMPTS || (!isRetryable(e) && !failOver)) {
+                    throw e;
+                }
+                transfer.failed();
+                if (!failOver) {
+                    Thread.sleep(backoffMillis(attempt));
+                }
+            }
+        }
+
+        commit(part, target, entry);
+        Files.deleteIfExists(validator);
+    }
+
+    private static void fetch(URI uri, Transfer transfer, Path part, Path validatorFile) throws IOException, InterruptedException {
+        Manifest.Entry entry = transfer.entry;
+        long existing = Files.exists(part) ? Files.size(part) : 0;
+        String validator = existing > 0 && Files.exists(validatorFile) ? Files.readString(validatorFile) : null;
+
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofSeconds(10))
+                .GET();
+        // If-Range makes the server send the whole file instead of a range if it changed since the .part was started
+        if (validator != null) {
+            request.header("Range", "bytes=" + existing + "-");
+            request.header("If-Range", validator);
+        }
+
+        MessageDigest digest = entry.hasHash() ? HashIndex.newSha256() : null;
+        long requested = System.nanoTime();
+        HttpResponse<InputStream> response = Http.CLIENT.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        transfer.latencyMillis = (System.nanoTime() - requested) / 1_000_000;
+        try (InputStream in = Http.watch(response.body(), uri)) {
+            switch (response.statusCode()) {
+                case 200 -> {
+                    saveValidator(response, validatorFile);
+                    write(in, part, false, digest, transfer);
+                }
+                case 206 -> {
+                    String range = response.headers().firstValue("Content-Range").orElse("");
+                    if (!range.startsWith("bytes " + existing + "-")) {
+                        Files.deleteIfExists(part);
+                        throw new IOException("Unexpected Content-Range \"" + range + "\" from " + uri);
+                    }
+                    hashExisting(part, digest);
+                    write(in, part, true, digest, transfer);
+                }
+                case 416 -> {
+                    // The .part may already hold the whole file, otherwise it's unusable
+                    String range = response.headers().firstValue("Content-Range").orElse("");
+                    if (!range.equals("bytes */" + existing)) {
+                        Files.deleteIfExists(part);
+                        throw new IOException("Partial download of " + uri + " no longer matches the server");
+                    }
+                    hashExisting(part, digest);
+                }
+                default -> throw new HttpStatusException(response.statusCode(), uri);
+            }
+        }
+
+        if (digest != null) {
+            String sha256 = HexFormat.of().formatHex(digest.digest());
+            if (Files.size(part) != entry.size() || !sha256.equals(entry.sha256())) {
+                // Start this file over on the next attempt
+                Files.deleteIfExists(part);
+                Files.deleteIfExists(validatorFile);
+                throw new IOException("Downloaded " + entry.name() + " does not match the server's hash");
+            }
+        }
+    }
+
+    // Fetches a hashed file as CHUNK_BYTES ranges into part. Each healthy mirror (up to MAX_SEGMENT_SOURCES) runs a
+    // worker taking chunks from a shared queue, so faster mirrors end up serving more of the file. A worker whose
+    // mirror fails hands its chunk back and stops. The finished file is checked against the manifest hash.
+    private void fetchSegmented(Mirrors mirrors, Transfer transfer, Path part) throws IOException, InterruptedException {
+        Manifest.Entry entry = transfer.entry;
+        List<URL> sources = mirrors.ranked().stream().limit(MAX_SEGMENT_SOURCES).toList();
+
+        Queue<Long> chunks = new ConcurrentLinkedQueue<>();
+        for (long offset = 0; offset < entry.size(); offset += CHUNK_BYTES) {
+            chunks.add(offset);
+        }
+
+        try (FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<Future<?>> workers = new ArrayList<>();
+            for (URL mirror : sources) {
+                URI uri = Http.resolve(mirror, remoteDir + entry.name());
+                workers.add(segments.submit(() -> {
+                    Long offset;
+                    while ((offset = chunks.poll()) != null) {
+                        long length = Math.min(CHUNK_BYTES, entry.size() - offset);
+                        long started = System.nanoTime();
+                        try {
+                            long latency = fetchChunk(uri, offset, length, entry.size(), out, transfer);
+                            if (transfer.latencyMillis < 0) {
+                                transfer.latencyMillis = latency;
+                            }
+                            mirrors.succeeded(mirror, latency, length, System.nanoTime() - started);
+                        } catch (IOException e) {
+                            mirrors.failed(mirror);
+                            transfer.concurrency.failed();
+                            chunks.add(offset);
+                            return null;
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            try {
+                for (Future<?> worker : workers) {
+                    worker.get();
+                }
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                workers.forEach(worker -> worker.cancel(true));
+                throw e;
+            }
+        }
+
+        if (!chunks.isEmpty()) {
+            throw new IOException("Every mirror failed while downloading " + entry.name());
+        }
+        MessageDigest digest = HashIndex.newSha256();
+        hashExisting(part, digest);
+        if (!HexFormat.of().formatHex(digest.digest()).equals(entry.sha256())) {
+            throw new IOException("Downloaded " + entry.name() + " does not match the server's hash");
+        }
+    }
+
+    // Writes bytes [offset, offset + length) of the file at uri to the same place in out, returning the latency
+    private static long fetchChunk(URI uri, long offset, long length, long size, FileChannel out, Transfer transfer) throws IOException, InterruptedException {
+        long last = offset + length - 1;
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofSeconds(10))
+                .header("Range", "bytes=" + offset + "-" + last)
+                .GET()
+                .build();
+        long requested = System.nanoTime();
+        HttpResponse<InputStream> response = Http.CLIENT.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        long latency = (System.nanoTime() - requested) / 1_000_000;
+        try (InputStream in = Http.watch(response.body(), uri)) {
+            if (response.statusCode() != 206) {
+                throw new HttpStatusException(response.statusCode(), uri);
+            }
+            String range = response.headers().firstValue("Content-Range").orElse("");
+            if (!range.equals("bytes " + offset + "-" + last + "/" + size)) {
+                throw new IOException("Unexpected Content-Range \"" + range + "\" from " + uri);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            ReadableByteChannel source = Channels.newChannel(in);
+            long position = offset;
+            int read;
+            while ((read = source.read(buffer)) != -1) {
+                if (position + read > offset + length) {
+                    throw new IOException("Too much data for range from " + uri);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += out.write(buffer, position);
+                }
+                buffer.clear();
+                transfer.received(read);
+            }
+            if (position != offset + length) {
+                throw new IOException("Range from " + uri + " ended early");
+            }
+        }
+        return latency;
+    }
+
+    private static void saveValidator(HttpResponse<?> response, Path validatorFile) throws IOException {
+        // Weak ETags aren't allowed in If-Range
+        String validator = response.headers().firstValue("ETag")
+                .filter(etag -> !etag.startsWith("W/"))
+                .or(() -> response.headers().firstValue("Last-Modified"))
+                .orElse(null);
+        if (validator != null) {
+            Files.writeString(validatorFile, validator);
+        } else {
+            Files.deleteIfExists(validatorFile);
+        }
+    }
+
+    private static void write(InputStream in, Path part, boolean append, MessageDigest digest, Transfer transfer) throws IOException {
+        StandardOpenOption mode = append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING;
+        ByteBuffer buffer = BUFFERS.get();
+        try (ReadableByteChannel source = Channels.newChannel(in);
+             WritableByteChannel out = DigestChannel.wrap(FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode), digest)) {
+            buffer.clear();
+            int read;
+            while ((read = source.read(buffer)) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+                transfer.received(read);
+            }
+        }
+    }
+
+    // A resumed download has to include the bytes from earlier attempts in its hash
+    private static void hashExisting(Path part, MessageDigest digest) throws IOException {
+        if (digest == null) {
+            return;
+        }
+        ByteBuffer buffer = BUFFERS.get();
+        try (FileChannel in = FileChannel.open(part, StandardOpenOption.READ)) {
+            buffer.clear();
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    private void commit(Path part, Path target, Manifest.Entry entry) throws IOException {
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (hashes != null && entry.hasHash()) {
+            hashes.put(target, entry.sha256());
+        }
+        if (store != null && entry.hasHash()) {
+            store.add(entry, target);
+        }
+    }
+
+    private static boolean isRetryable(IOException e) {
+        if (e instanceof HttpStatusException status) {
+            return status.status >= 500 || status.status == 429 || status.status == 408;
+        }
+        return true;
+    }
+
+    private static long backoffMillis(int attempt) {
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, 1000L << (attempt - 1));
+        // Jitter so clients that failed together don't all retry together
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        segments.shutdownNow();
+    }
+
+    // Passes writes through to a file while feeding the same bytes to a digest
+    private static final class DigestChannel implements WritableByteChannel {
+        private final FileChannel out;
+        private final MessageDigest digest;
+
+        private DigestChannel(FileChannel out, MessageDigest digest) {
+            this.out = out;
+            this.digest = digest;
+        }
+
+        static WritableByteChannel wrap(FileChannel out, MessageDigest digest) {
+            return digest == null ? out : new DigestChannel(out, digest);
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            ByteBuffer written = source.duplicate();
+            int count = out.write(source);
+            written.limit(written.position() + count);
+            digest.update(written);
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return out.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        HttpStatusException(int status, URI uri) {
+            super("Received error code " + status + " from " + uri);
+            this.status = status;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.cody.modsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// SHA-256 of local files, cached in .modsync/hashes.txt so unchanged jars aren't re-hashed every launch.
+// A cached hash is only trusted while the file's size and modification time still match.
+public class HashIndex {
+    private static final String FILE = "hashes.txt";
+
+    private record Cached(long size, long modified, String sha256) {}
+
+    private final Path file;
+    private final Map<String, Cached> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty;
+
+    private HashIndex(Path file) {
+        this.file = file;
+    }
+
+    public static HashIndex load(File gameDir) {
+        HashIndex index = new HashIndex(gameDir.toPath().resolve(".modsync").resolve(FILE));
+        try {
+            // Each line is "<sha256> <size> <mtime> <path>"
+            for (String line : Files.readAllLines(index.file)) {
+                String[] parts = line.split(" ", 4);
+                if (parts.length == 4) {
+                    index.entries.put(parts[3], new Cached(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[0]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // A missing or damaged index only costs a re-hash
+            index.entries.clear();
+        }
+        return index;
+    }
+
+    public String hash(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        String key = key(path);
+
+        Cached cached = entries.get(key);
+        if (cached != null && cached.size == size && cached.modified == modified) {
+            return cached.sha256;
+        }
+
+        String sha256 = sha256(path);
+        entries.put(key, new Cached(size, modified, sha256));
+        dirty = true;
+        return sha256;
+    }
+
+    // Records a hash that is already known, for example one checked while downloading
+    public void put(Path path, String sha256) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        entries.put(key(path), new Cached(attributes.size(), attributes.lastModifiedTime().toMillis(), sha256));
+        dirty = true;
+    }
+
+    public void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+
+        List<String> lines = new ArrayList<>(entries.size());
+        for (Map.Entry<String, Cached> entry : entries.entrySet()) {
+            if (!Files.exists(Path.of(entry.getKey()))) {
+                continue;
+            }
+            Cached cached = entry.getValue();
+            lines.add(cached.sha256 + " " + cached.size + " " + cached.modified + " " + entry.getKey());
+        }
+
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, lines);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    public static String sha256(Path path) throws IOException {
+        MessageDigest digest = newSha256();
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    public static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String key(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+}
@@ -0,0 +1,438 @@
+package com.cody.modsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// Command line sync of any number of game directories, without AWT:
+//     java -jar modsync.jar [--url <url>] [--jobs <n>] [--store <dir>] [--verbose] <game dir>...
+//     java -jar modsync.jar --rollback <game dir>...
+//     java -jar modsync.jar --check <game dir>...
+// Each server's manifest is fetched once, and mods needed by more than one directory are downloaded once into a
+// content store and linked from there, so a fleet of directories costs about one download of the pack.
+public class Headless {
+    public static final int EXIT_OK = 0;
+    // At least one directory failed to sync, the others were still synced
+    public static final int EXIT_FAILED = 1;
+    public static final int EXIT_USAGE = 2;
+
+    private static final int DEFAULT_JOBS = 4;
+    private static final String USAGE = "Usage: java -jar modsync.jar [--url <url>] [--jobs <n>] [--store <dir>] [--verbose] <game dir>...\n"
+            + "       java -jar modsync.jar --rollback <game dir>...\n"
+            + "       java -jar modsync.jar [--url <url>] --check <game dir>...";
+
+    private static class Target {
+        final File gameDir;
+        SyncConfig config;
+        Sync sync;
+        String server;
+        URL updateURL;
+        Manifest manifest;
+        // The server's name for the ModSync jar each directory keeps in mods/, null if it names none
+        String jarName;
+        SyncPlan plan;
+        String failure;
+
+        Target(File gameDir) {
+            this.gameDir = gameDir;
+        }
+
+        void fail(String stage, Exception e) {
+            if (failure == null) {
+                failure = stage + ": " + e;
+            }
+        }
+    }
+
+    private final PrintStream out;
+    private String urlOverride;
+    private int jobs = DEFAULT_JOBS;
+    private Path storeDir;
+    private boolean verbose;
+    private boolean rollback;
+    private boolean check;
+    private final List<Target> targets = new ArrayList<>();
+    private final AtomicLong prefetchBytes = new AtomicLong();
+    // Taken from by every download of the run, see setUp
+    private TokenBucket bandwidth;
+
+    private Headless(PrintStream out) {
+        this.out = out;
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    public static int run(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        Headless headless = new Headless(System.out);
+        try {
+            headless.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        if (headless.rollback) {
+            return headless.rollbackAll();
+        }
+        return headless.check ? headless.checkAll() : headless.syncAll();
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--url" -> urlOverride = value(args, ++i);
+                case "--jobs" -> {
+                    try {
+                        jobs = Math.max(1, Integer.parseInt(value(args, ++i)));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid value for --jobs: " + args[i]);
+                    }
+                }
+                case "--store" -> storeDir = Path.of(value(args, ++i));
+                case "--verbose" -> verbose = true;
+                case "--rollback" -> rollback = true;
+                case "--check" -> check = true;
+                default -> {
+                    if (args[i].startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                    }
+                    targets.add(new Target(new File(args[i]).getAbsoluteFile()));
+                }
+            }
+        }
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("No game directories given");
+        }
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException(args[i - 1] + " needs a value");
+        }
+        return args[i];
+    }
+
+    private int syncAll() {
+        Path workDir;
+        try {
+            workDir = Files.createTempDirectory("modsync-batch");
+        } catch (IOException e) {
+            System.err.println("Failed to create temporary directory: " + e);
+            return EXIT_FAILED;
+        }
+        // Without a store to share, one just for this run keeps the downloads shared
+        ContentStore store = storeDir == null
+                ? new ContentStore(workDir.resolve("store"), Long.MAX_VALUE)
+                : new ContentStore(storeDir, SyncConfig.DEFAULT_STORE_MAX_MB * 1024 * 1024);
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(jobs, targets.size()));
+        try {
+            setUp(store);
+            fetchManifests();
+            forEachTarget(pool, "plan", this::plan);
+            prefetch(store, workDir);
+            forEachTarget(pool, "sync", this::apply);
+        } finally {
+            pool.shutdownNow();
+            try {
+                store.close();
+            } catch (IOException e) {
+                System.err.println("Failed to update download store index: " + e);
+            }
+            deleteTree(workDir);
+        }
+        return summarize();
+    }
+
+    //==================================================================================================================
+    // Read each directory's config; --url stands in for a missing or different update URL
+
+    private void setUp(ContentStore store) {
+        Path runningJar = runningJar();
+        for (Target target : targets) {
+            try {
+                List<String> lines = new ArrayList<>();
+                if (urlOverride != null) {
+                    // The first URL line wins, so this takes precedence over the file's
+                    lines.add(urlOverride);
+                }
+                File configFile = SyncConfig.file(target.gameDir);
+                if (configFile.exists()) {
+                    lines.addAll(Files.readAllLines(configFile.toPath()));
+                }
+                SyncConfig config = SyncConfig.parse(lines);
+                if (config.url() == null || config.url().isBlank()) {
+                    throw new IOException("No update URL in " + configFile + " and no --url given");
+                }
+
+                URL updateURL = toUrl(config.url());
+                target.config = config;
+                target.server = updateURL.toString();
+                target.updateURL = updateURL;
+            } catch (IOException | IllegalArgumentException e) {
+                target.fail("config", e);
+            }
+        }
+
+        // The directories and the prefetch download side by side, so they share one limit: the lowest any of them sets
+        bandwidth = TokenBucket.of(targets.stream()
+                .filter(target -> target.failure == null)
+                .mapToLong(target -> target.config.bandwidthLimit())
+                .filter(limit -> limit > 0)
+                .min()
+                .orElse(0));
+        for (Target target : targets) {
+            if (target.failure == null) {
+                target.sync = new Sync(target.gameDir, target.config, target.updateURL, MetadataCache.forGameDir(target.gameDir), runningJar, store, bandwidth);
+            }
+        }
+    }
+
+    // One manifest and ModSync jar name per server, shared by every directory syncing against it
+    private void fetchManifests() {
+        Map<String, List<Target>> byServer = new LinkedHashMap<>();
+        for (Target target : targets) {
+            if (target.failure == null) {
+                byServer.computeIfAbsent(target.server, server -> new ArrayList<>()).add(target);
+            }
+        }
+
+        byServer.forEach((server, serverTargets) -> {
+            try {
+                Manifest manifest = serverTargets.get(0).sync.fetchManifest();
+                // Not in the manifest, so without this the directories' own ModSync jars would be planned as removals
+                String jarName = serverTargets.get(0).sync.fetchJarName();
+                serverTargets.forEach(target -> {
+                    target.manifest = manifest;
+                    target.jarName = jarName;
+                    target.sync.keepJar(jarName);
+                });
+                log("Fetched mod list from " + server + " (" + manifest.entries().size() + " mods)");
+            } catch (IOException | IllegalArgumentException e) {
+                serverTargets.forEach(target -> target.fail("fetchManifest", e));
+            }
+        });
+    }
+
+    private void plan(Target target) throws IOException {
+        target.plan = target.sync.plan(target.manifest);
+    }
+
+    // Downloads every mod more than one directory needs into the store once, so the directories link it from there.
+    // Mods only one directory needs are left to that directory, where an old copy may make a delta possible.
+    private void prefetch(ContentStore store, Path workDir) {
+        Map<String, Map<String, Manifest.Entry>> shared = new LinkedHashMap<>();
+        Map<String, Integer> wanted = new LinkedHashMap<>();
+        for (Target target : targets) {
+            if (target.failure != null) {
+                continue;
+            }
+            for (Manifest.Entry entry : target.plan.toDownload()) {
+                // Without hashes the store can't tell versions apart, so those are downloaded per directory
+                if (entry.hasHash() && wanted.merge(entry.sha256(), 1, Integer::sum) == 2) {
+                    shared.computeIfAbsent(target.server, server -> new LinkedHashMap<>()).put(entry.sha256(), entry);
+                }
+            }
+        }
+
+        int server = 0;
+        for (Map.Entry<String, Map<String, Manifest.Entry>> serverEntries : shared.entrySet()) {
+            Path staging = workDir.resolve("staging-" + server++);
+            SyncConfig config = targets.stream()
+                    .filter(target -> target.server != null && target.server.equals(serverEntries.getKey()))
+                    .findFirst()
+                    .map(target -> target.config)
+                    .orElseThrow();
+            log("Downloading " + serverEntries.getValue().size() + " shared mods from " + serverEntries.getKey());
+
+            try (DownloadEngine engine = new DownloadEngine(config.threads(), workDir.resolve("downloads"), null, store)
+                    .limitBandwidth(bandwidth)) {
+                Files.createDirectories(staging);
+                Mirrors mirrors = Mirrors.of(toUrl(serverEntries.getKey()), config.mirrors());
+                engine.downloadAll(mirrors, serverEntries.getValue().values(), staging, JarDelta.Bases.NONE, new DownloadEngine.Listener() {
+                    @Override
+                    public void fileDone(String name, int done, int total) {
+                        log("Downloaded " + name + " (" + done + "/" + total + ")");
+                    }
+
+                    @Override
+                    public void fileFinished(DownloadEngine.FileResult result) {
+                        prefetchBytes.addAndGet(result.networkBytes());
+                    }
+                });
+            } catch (IOException e) {
+                // Not fatal, each directory downloads whatever is still missing itself
+                System.err.println("Failed to download shared mods from " + serverEntries.getKey() + ": " + e);
+            } finally {
+                deleteTree(staging);
+            }
+        }
+    }
+
+    private void apply(Target target) throws IOException {
+        Sync.Listener listener = new Sync.Listener() {
+            @Override
+            public void status(String message) {
+                log(target.gameDir + ": " + message);
+            }
+
+            @Override
+            public void progress(int done, int total) {}
+        };
+
+        target.sync.download(target.plan, listener);
+        target.sync.commit(target.plan, listener);
+        if (!target.sync.verify(target.manifest)) {
+            throw new IOException("Mod list does not match server after download");
+        }
+        target.sync.syncTrees(listener);
+        // Lets the first launch of the directory skip the full check; it only passes with the ModSync jar in place
+        if (target.jarName != null && Files.exists(target.gameDir.toPath().resolve("mods").resolve(target.jarName))) {
+            target.sync.recordState(target.manifest, target.jarName);
+        }
+    }
+
+    private interface Step {
+        void run(Target target) throws IOException;
+    }
+
+    // Runs step for every directory that hasn't failed yet, jobs at a time, recording failures on the directory
+    private void forEachTarget(ExecutorService pool, String stage, Step step) {
+        Map<Target, Future<?>> running = new LinkedHashMap<>();
+        for (Target target : targets) {
+            if (target.failure == null) {
+                running.put(target, pool.submit(() -> {
+                    step.run(target);
+                    return null;
+                }));
+            }
+        }
+
+        running.forEach((target, future) -> {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                target.fail(stage, e.getCause() instanceof Exception cause ? cause : e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                target.fail(stage, e);
+            }
+        });
+    }
+
+    // Undoes each directory's last commit from the jars it kept, without contacting the server
+    private int rollbackAll() {
+        int failed = 0;
+        for (Target target : targets) {
+            try {
+                boolean rolledBack = new Transaction(target.gameDir).rollback() | TreeSync.rollbackAll(target.gameDir);
+                out.println("OK     " + target.gameDir + "  " + (rolledBack ? "rolled back" : "nothing to roll back"));
+            } catch (IOException e) {
+                failed++;
+                out.println("FAILED " + target.gameDir + "  rollback: " + e);
+            }
+        }
+        return failed == 0 ? EXIT_OK : EXIT_FAILED;
+    }
+
+    // Runs the in-game update check on each directory and times it, which is what a launch of the game waits for.
+    // Exits with 0 only if every directory is up to date.
+    private int checkAll() {
+        setUp(null);
+        int outdated = 0;
+        for (Target target : targets) {
+            if (target.failure != null) {
+                outdated++;
+                out.println("FAILED " + target.gameDir + "  " + target.failure);
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                boolean upToDate = new UpdateCheck(target.updateURL, target.gameDir, target.config).isUpToDate();
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                if (!upToDate) {
+                    outdated++;
+                }
+                out.println((upToDate ? "OK     " : "STALE  ") + target.gameDir + "  " + (upToDate ? "up to date" : "out of date") + " (" + millis + " ms)");
+            } catch (IOException e) {
+                outdated++;
+                out.println("FAILED " + target.gameDir + "  check: " + e);
+            }
+        }
+        return outdated == 0 ? EXIT_OK : EXIT_FAILED;
+    }
+
+    //==================================================================================================================
+
+    private int summarize() {
+        int failed = 0;
+        long networkBytes = prefetchBytes.get();
+        for (Target target : targets) {
+            if (target.sync != null) {
+                target.sync.writeReport();
+                networkBytes += target.sync.report().networkBytes();
+            }
+
+            if (target.failure != null) {
+                failed++;
+                out.println("FAILED " + target.gameDir + "  " + target.failure);
+            } else {
+                out.println("OK     " + target.gameDir + "  " + target.plan.toDownload().size() + " downloaded, "
+                        + target.plan.toRemove().size() + " removed, " + target.plan.toMove().size() + " renamed");
+            }
+        }
+
+        out.println((targets.size() - failed) + "/" + targets.size() + " directories synced, "
+                + String.format("%.1f", networkBytes / (1024.0 * 1024.0)) + " MB downloaded");
+        return failed == 0 ? EXIT_OK : EXIT_FAILED;
+    }
+
+    private void log(String message) {
+        if (verbose) {
+            out.println(message);
+        }
+    }
+
+    private static URL toUrl(String urlString) throws MalformedURLException {
+        String trimmedUrl = urlString.trim();
+        // Same as the GUI, a URL without a protocol is taken as http
+        if (!trimmedUrl.matches("^(?i)https?://.*")) {
+            trimmedUrl = "http://" + trimmedUrl;
+        }
+        return new URL(trimmedUrl);
+    }
+
+    private static Path runningJar() {
+        try {
+            return Path.of(Headless.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static void deleteTree(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            // Only leftovers in a temporary directory
+        }
+    }
+}
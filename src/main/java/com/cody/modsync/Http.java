@@ -0,0 +1,234 @@
+package com.cody.modsync;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+// One client for the whole process so connections are kept alive (or multiplexed over HTTP/2) between requests
+public final class Http {
+    public static final HttpClient CLIENT = HttpClient.newBuilder()
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    // The request timeout only covers waiting for the headers, so a server that stops sending part way through a body
+    // is caught by watch() instead
+    public static final Duration IDLE_TIMEOUT = Duration.ofSeconds(20);
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ModSync read watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // status is 304 when the validators passed to fetchAsync still match; body is then only set if it came from a cache
+    public record Fetched(int status, String body, String etag, String lastModified) {
+        public boolean notModified() {
+            return status == 304;
+        }
+    }
+
+    // Like Fetched, but the (decompressed) body is read as it arrives and has to be closed
+    public record Opened(int status, InputStream body, String etag, String lastModified) implements Closeable {
+        public boolean notModified() {
+            return status == 304;
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+
+    private Http() {}
+
+    // Fetches a small text endpoint, revalidating with the given ETag and Last-Modified values if they aren't null.
+    // 200, 304 and 404 are returned, anything else is an error.
+    public static CompletableFuture<Fetched> fetchAsync(URI uri, String etag, String lastModified) {
+        return CLIENT.sendAsync(request(uri, etag, lastModified), HttpResponse.BodyHandlers.ofByteArray()).thenApply(response -> {
+            int status = response.statusCode();
+            if (status != 200 && status != 304 && status != 404) {
+                throw new CompletionException(new IOException("Received error code " + status + " from " + uri));
+            }
+
+            String body = null;
+            if (status == 200) {
+                try {
+                    body = decode(response);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }
+            return new Fetched(status, body,
+                    response.headers().firstValue("ETag").orElse(null),
+                    response.headers().firstValue("Last-Modified").orElse(null));
+        });
+    }
+
+    // As fetchAsync, for bodies too big to be held whole, like the manifest of a large pack
+    public static Opened open(URI uri, String etag, String lastModified) throws IOException {
+        HttpResponse<InputStream> response;
+        try {
+            response = CLIENT.send(request(uri, etag, lastModified), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching " + uri, e);
+        }
+
+        int status = response.statusCode();
+        InputStream body = watch(response.body(), uri);
+        try {
+            if (status != 200 && status != 304 && status != 404) {
+                throw new IOException("Received error code " + status + " from " + uri);
+            }
+            String encoding = response.headers().firstValue("Content-Encoding").orElse("identity");
+            if (encoding.equalsIgnoreCase("gzip")) {
+                body = new GZIPInputStream(body, 64 * 1024);
+            } else if (!encoding.equalsIgnoreCase("identity")) {
+                throw new IOException("Unsupported Content-Encoding " + encoding + " from " + uri);
+            }
+        } catch (IOException e) {
+            body.close();
+            throw e;
+        }
+        return new Opened(status, body,
+                response.headers().firstValue("ETag").orElse(null),
+                response.headers().firstValue("Last-Modified").orElse(null));
+    }
+
+    // Wraps a response body so a read that gets no bytes for IDLE_TIMEOUT closes it and fails, letting the caller
+    // retry (or resume) instead of hanging. Time spent outside read(), like writing to disk, doesn't count.
+    public static InputStream watch(InputStream body, URI uri) {
+        return new IdleTimeoutStream(body, uri);
+    }
+
+    private static final class IdleTimeoutStream extends FilterInputStream {
+        private final URI uri;
+        private final ScheduledFuture<?> check;
+        // When the read in progress started, 0 while not reading
+        private volatile long readingSince;
+        private volatile boolean timedOut;
+
+        IdleTimeoutStream(InputStream in, URI uri) {
+            super(in);
+            this.uri = uri;
+            long period = Math.max(1, IDLE_TIMEOUT.toMillis() / 4);
+            this.check = WATCHDOG.scheduleWithFixedDelay(this::check, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        private void check() {
+            long since = readingSince;
+            if (since != 0 && System.nanoTime() - since > IDLE_TIMEOUT.toNanos()) {
+                timedOut = true;
+                try {
+                    close();
+                } catch (IOException ignored) {
+                    // The blocked read fails either way
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            readingSince = System.nanoTime();
+            try {
+                return super.read();
+            } catch (IOException e) {
+                throw failure(e);
+            } finally {
+                readingSince = 0;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            readingSince = System.nanoTime();
+            try {
+                return super.read(buffer, offset, length);
+            } catch (IOException e) {
+                throw failure(e);
+            } finally {
+                readingSince = 0;
+            }
+        }
+
+        private IOException failure(IOException e) {
+            return timedOut ? new IOException("No data from " + uri + " for " + IDLE_TIMEOUT.toSeconds() + " seconds", e) : e;
+        }
+
+        @Override
+        public void close() throws IOException {
+            check.cancel(false);
+            super.close();
+        }
+    }
+
+    private static HttpRequest request(URI uri, String etag, String lastModified) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofSeconds(10))
+                .header("Accept-Encoding", "gzip")
+                .GET();
+        if (etag != null) {
+            request.header("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            request.header("If-Modified-Since", lastModified);
+        }
+        return request.build();
+    }
+
+    private static String decode(HttpResponse<byte[]> response) throws IOException {
+        byte[] body = response.body();
+        String encoding = response.headers().firstValue("Content-Encoding").orElse("identity");
+        if (encoding.equalsIgnoreCase("gzip")) {
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+                body = in.readAllBytes();
+            }
+        } else if (!encoding.equalsIgnoreCase("identity")) {
+            throw new IOException("Unsupported Content-Encoding " + encoding + " from " + response.uri());
+        }
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    // Waits for a request, unwrapping the IOException it failed with
+    public static <T> T await(CompletableFuture<T> future, URI uri) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Failed to fetch " + uri, cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching " + uri, e);
+        }
+    }
+
+    // Resolves a path (for example "mods/Some Mod.jar") against the update URL, escaping characters URLs can't hold
+    public static URI resolve(URL base, String path) {
+        try {
+            return base.toURI().resolve(new URI(null, null, path, null));
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Failed to resolve " + path + " against " + base, e);
+        }
+    }
+}
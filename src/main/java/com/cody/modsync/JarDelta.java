@@ -0,0 +1,297 @@
+package com.cody.modsync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Rebuilds an updated jar from an older local copy, fetching only the zip records that changed.
+// The server's "delta/<name>" endpoint describes the new jar as the byte ranges of its zip records, in file order:
+//     modid <id>                                  (any number, from META-INF/mods.toml)
+//     <offset> <length> <crc32 of the raw bytes> <entry name>
+// The last range is the central directory, which has no entry name. The client cuts its own jar up the same way,
+// copies every record whose raw bytes match, and fetches the rest with Range requests. The result is checked against
+// the manifest hash, so any mismatch just falls back to a full download.
+final class JarDelta {
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50;
+    private static final Pattern MOD_ID = Pattern.compile("modId\\s*=\\s*\"([^\"]+)\"");
+    // Past this share of changed bytes, a plain download is about as cheap and much simpler
+    private static final double MAX_CHANGED_FRACTION = 0.6;
+    // Each run of changed records costs one request
+    private static final int MAX_RANGE_REQUESTS = 64;
+
+    record Segment(long offset, long length, long crc) {
+        Key key() {
+            return new Key(length, crc);
+        }
+    }
+
+    // Records with the same length and checksum are taken to be identical; the final hash check backs this up
+    private record Key(long length, long crc) {}
+
+    private record Index(Set<String> modIds, List<Segment> segments) {}
+
+    private record Source(Path file, long offset) {}
+
+    // Local jars a download may be rebuilt from: the file it replaces, and jars that are (or may be) about to be removed
+    record Bases(Map<String, Path> replacing, Collection<Path> others) {
+        static final Bases NONE = new Bases(Map.of(), List.of());
+
+        boolean isEmpty() {
+            return replacing.isEmpty() && others.isEmpty();
+        }
+    }
+
+    private JarDelta() {}
+
+    // Builds the new jar into part from the usable bases. Returns false if no delta was possible, and throws an
+    // HttpStatusException for a 404 if the server has no index for it.
+    static boolean rebuild(URI indexUri, URI fileUri, Manifest.Entry entry, Bases candidates, Path part, LongConsumer onBytes)
+            throws IOException, InterruptedException {
+        // Without a local jar to start from, the index isn't worth asking for
+        Path sameName = candidates.replacing.get(entry.name());
+        if (sameName == null && candidates.others.isEmpty()) {
+            return false;
+        }
+
+        Http.Fetched fetched = Http.await(Http.fetchAsync(indexUri, null, null), indexUri);
+        if (fetched.status() == 404) {
+            throw new DownloadEngine.HttpStatusException(404, indexUri);
+        }
+        if (fetched.status() != 200) {
+            return false;
+        }
+        Index index = parseIndex(fetched.body());
+
+        // The jar being replaced is always a candidate, other local jars only if they hold the same mod
+        List<Path> bases = new ArrayList<>();
+        if (sameName != null) {
+            bases.add(sameName);
+        }
+        for (Path other : candidates.others) {
+            if (!index.modIds.isEmpty() && modIds(other).stream().anyMatch(index.modIds::contains)) {
+                bases.add(other);
+            }
+        }
+
+        Map<Key, Source> local = new HashMap<>();
+        for (Path base : bases) {
+            for (Segment segment : segments(base)) {
+                local.putIfAbsent(segment.key(), new Source(base, segment.offset));
+            }
+        }
+        if (local.isEmpty()) {
+            return false;
+        }
+
+        // Work out the remote byte ranges to fetch, merging neighbouring changed records
+        List<long[]> ranges = new ArrayList<>();
+        long changed = 0;
+        long total = 0;
+        for (Segment segment : index.segments) {
+            total += segment.length;
+            if (local.containsKey(segment.key())) {
+                continue;
+            }
+            changed += segment.length;
+            long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && last[1] == segment.offset) {
+                last[1] = segment.offset + segment.length;
+            } else {
+                ranges.add(new long[]{segment.offset, segment.offset + segment.length});
+            }
+        }
+        if (total != entry.size() || changed > total * MAX_CHANGED_FRACTION || ranges.size() > MAX_RANGE_REQUESTS) {
+            return false;
+        }
+
+        try (FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int range = 0;
+            for (Segment segment : index.segments) {
+                Source source = local.get(segment.key());
+                if (source != null) {
+                    try (FileChannel in = FileChannel.open(source.file, StandardOpenOption.READ)) {
+                        transferFully(in, source.offset, segment.length, out);
+                    }
+                } else if (range < ranges.size() && ranges.get(range)[0] == segment.offset) {
+                    long[] bytes = ranges.get(range++);
+                    fetchRange(fileUri, bytes[0], bytes[1], out);
+                    onBytes.accept(bytes[1] - bytes[0]);
+                }
+            }
+        }
+
+        if (Files.size(part) != entry.size() || !HashIndex.sha256(part).equals(entry.sha256())) {
+            Files.deleteIfExists(part);
+            return false;
+        }
+        return true;
+    }
+
+    private static void fetchRange(URI uri, long start, long end, FileChannel out) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofSeconds(10))
+                .header("Range", "bytes=" + start + "-" + (end - 1))
+                .GET()
+                .build();
+        HttpResponse<InputStream> response = Http.CLIENT.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream in = Http.watch(response.body(), uri)) {
+            String contentRange = response.headers().firstValue("Content-Range").orElse("");
+            if (response.statusCode() != 206 || !contentRange.startsWith("bytes " + start + "-" + (end - 1) + "/")) {
+                throw new IOException("Server did not honour range request for " + uri);
+            }
+            long copied = out.transferFrom(Channels.newChannel(in), out.position(), end - start);
+            if (copied != end - start) {
+                throw new IOException("Range response for " + uri + " ended early");
+            }
+            out.position(out.position() + copied);
+        }
+    }
+
+    private static void transferFully(FileChannel in, long offset, long length, FileChannel out) throws IOException {
+        long done = 0;
+        while (done < length) {
+            long copied = in.transferTo(offset + done, length - done, out);
+            if (copied <= 0) {
+                throw new IOException("Local jar ended early");
+            }
+            done += copied;
+        }
+    }
+
+    private static Index parseIndex(String text) throws IOException {
+        Set<String> modIds = new HashSet<>();
+        List<Segment> segments = new ArrayList<>();
+        long expectedOffset = 0;
+        for (String rawLine : text.split("\n")) {
+            String line = rawLine.strip();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split(" ", 4);
+            if (parts[0].equals("modid") && parts.length == 2) {
+                modIds.add(parts[1]);
+                continue;
+            }
+            try {
+                Segment segment = new Segment(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2], 16));
+                if (segment.offset != expectedOffset) {
+                    throw new IOException("Delta index has a gap at " + expectedOffset);
+                }
+                expectedOffset += segment.length;
+                segments.add(segment);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Invalid delta index line: " + line, e);
+            }
+        }
+        return new Index(modIds, segments);
+    }
+
+    // Cuts a jar into its zip records (local header, data and descriptor) plus the trailing central directory
+    static List<Segment> segments(Path jar) throws IOException {
+        try (FileChannel channel = FileChannel.open(jar, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer tail = ByteBuffer.allocate((int) Math.min(size, 65_557)).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(tail, size - tail.capacity());
+
+            int end = -1;
+            for (int i = tail.capacity() - 22; i >= 0; i--) {
+                if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+                    end = i;
+                    break;
+                }
+            }
+            if (end < 0) {
+                throw new IOException("Not a zip file: " + jar);
+            }
+            long directorySize = Integer.toUnsignedLong(tail.getInt(end + 12));
+            long directoryOffset = Integer.toUnsignedLong(tail.getInt(end + 16));
+            if (directoryOffset == 0xFFFFFFFFL || directoryOffset + directorySize > size) {
+                throw new IOException("Unsupported zip layout: " + jar);
+            }
+
+            ByteBuffer directory = ByteBuffer.allocate((int) directorySize).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(directory, directoryOffset);
+            List<Long> offsets = new ArrayList<>();
+            int position = 0;
+            while (position + 46 <= directorySize && directory.getInt(position) == CENTRAL_DIRECTORY_HEADER) {
+                offsets.add(Integer.toUnsignedLong(directory.getInt(position + 42)));
+                position += 46 + Short.toUnsignedInt(directory.getShort(position + 28))
+                        + Short.toUnsignedInt(directory.getShort(position + 30))
+                        + Short.toUnsignedInt(directory.getShort(position + 32));
+            }
+            offsets.sort(null);
+            offsets.add(directoryOffset);
+            offsets.add(size);
+
+            List<Segment> segments = new ArrayList<>(offsets.size());
+            long start = 0;
+            for (long offset : offsets) {
+                if (offset > start) {
+                    segments.add(new Segment(start, offset - start, crc(channel, start, offset - start)));
+                    start = offset;
+                }
+            }
+            return segments;
+        }
+    }
+
+    private static long crc(FileChannel channel, long offset, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long done = 0;
+        while (done < length) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - done));
+            int read = channel.read(buffer, offset + done);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            buffer.flip();
+            crc.update(buffer);
+            done += read;
+        }
+        return crc.getValue();
+    }
+
+    private static Set<String> modIds(Path jar) {
+        Set<String> modIds = new HashSet<>();
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            ZipEntry modsToml = zip.getEntry("META-INF/mods.toml");
+            if (modsToml != null) {
+                try (InputStream in = zip.getInputStream(modsToml)) {
+                    Matcher matcher = MOD_ID.matcher(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+                    while (matcher.find()) {
+                        modIds.add(matcher.group(1));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Not a readable jar, so not a usable base either
+        }
+        return modIds;
+    }
+}
@@ -0,0 +1,78 @@
+package com.cody.modsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Starts the JVMs ModSync runs outside the game: the sync GUI, and the Updater that swaps in a new ModSync jar.
+// They get ModSync's own classes as the whole classpath and none of the JVM options the game was started with.
+// The GUI also gets a CDS archive of the classes it loads, written by its first run, which takes most of the class
+// loading out of later starts; the short-lived Updater skips the optimizing compiler instead.
+public final class JvmLauncher {
+    // Would otherwise be inherited from the game's launcher, agents and all
+    private static final List<String> INHERITED_ENV = List.of("JAVA_TOOL_OPTIONS", "_JAVA_OPTIONS", "JDK_JAVA_OPTIONS", "CLASSPATH");
+
+    private JvmLauncher() {}
+
+    // The JVM runs in gameDir, with its output appended to .modsync/launch.log
+    public static Process start(File gameDir, Path classpath, String mainClass, boolean shortLived, String... args) throws IOException {
+        Path stateDir = gameDir.toPath().resolve(".modsync");
+        Files.createDirectories(stateDir);
+
+        List<String> command = new ArrayList<>();
+        command.add(javaExecutable());
+        // A JVM that doesn't know one of the options below starts without it rather than failing
+        command.add("-XX:+IgnoreUnrecognizedVMOptions");
+        command.add("-Xshare:auto");
+        // Small heaps, no GC threads worth starting
+        command.add("-XX:+UseSerialGC");
+        if (shortLived) {
+            command.add("-XX:TieredStopAtLevel=1");
+        } else if (Files.isRegularFile(classpath)) {
+            command.add(archiveOption(stateDir.resolve("cds"), classpath));
+        }
+        command.add("-cp");
+        command.add(classpath.toAbsolutePath().toString());
+        command.add(mainClass);
+        command.addAll(List.of(args));
+
+        ProcessBuilder builder = new ProcessBuilder(command)
+                .directory(gameDir)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(stateDir.resolve("launch.log").toFile()));
+        INHERITED_ENV.forEach(builder.environment()::remove);
+        return builder.start();
+    }
+
+    // Uses the archive for this jar and JVM if an earlier run wrote it, otherwise has this run write it at exit.
+    // The JVM checks an archive against the classpath itself and runs without it if they don't match.
+    private static String archiveOption(Path archiveDir, Path jar) throws IOException {
+        String name = (jar.getFileName() + "-" + System.getProperty("java.vm.version")).replaceAll("[^A-Za-z0-9._-]", "_") + ".jsa";
+        Path archive = archiveDir.resolve(name);
+        if (Files.exists(archive)) {
+            return "-XX:SharedArchiveFile=" + archive.toAbsolutePath();
+        }
+
+        // Archives for older jars or JVMs won't be used again
+        Files.createDirectories(archiveDir);
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(archiveDir, "*.jsa")) {
+            for (Path file : stale) {
+                Files.deleteIfExists(file);
+            }
+        }
+        return "-XX:ArchiveClassesAtExit=" + archive.toAbsolutePath();
+    }
+
+    // The java of the JVM this runs in
+    private static String javaExecutable() {
+        String javaPath = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        if (System.getProperty("os.name").toLowerCase().contains("win")) {
+            javaPath += ".exe";
+        }
+        return javaPath;
+    }
+}
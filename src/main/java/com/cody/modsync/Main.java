@@ -7,10 +7,9 @@ import java.awt.*;
 import java.io.*;
 import java.net.*;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletionException;
 
 public class Main extends JFrame {
 
@@ -19,15 +18,17 @@ public class Main extends JFrame {
         JOptionPane.showMessageDialog(null, "Modpack update found! Please press OK, and do not close the window that appears!", "ModSync", JOptionPane.INFORMATION_MESSAGE);
 //======================================================================================================================
         // Get update url from config file
-        File configFile = new File(System.getProperty("user.dir"), "config" + File.separator + "modsync.txt");
+        File configFile = SyncConfig.file(new File(System.getProperty("user.dir")));
         if (!configFile.exists()) {
             createDefaultConfig(configFile);
         }
 
+        SyncConfig configTemp = null;
         URL updateURLTemp = null;
         try {
-            updateURLTemp = toUrl(Files.readString(configFile.toPath()));
-        } catch (IOException e) {
+            configTemp = SyncConfig.read(configFile);
+            updateURLTemp = toUrl(configTemp.url());
+        } catch (IOException | IllegalArgumentException e) {
             JOptionPane.showMessageDialog(null, "Error while reading config file: " + e, "Error", JOptionPane.ERROR_MESSAGE);
             System.exit(1);
         }
@@ -38,6 +39,7 @@ public class Main extends JFrame {
         }
 
         // Lambda does not like non-final variables
+        final SyncConfig config = configTemp;
         final URL updateURL = updateURLTemp;
 //======================================================================================================================
         // Get running jar file
@@ -52,65 +54,39 @@ public class Main extends JFrame {
         // Because .equals complains about not being final
         final File runningJar = runningJarTemp;
 //======================================================================================================================
-        // Check for modsync updates
-        String serverModSyncClientName = getFromUrl(resolve(updateURL, "mod_sync_jar_name"));
-        if (serverModSyncClientName != null && !serverModSyncClientName.equals(runningJar.getName())) {
-            JOptionPane.showMessageDialog(null, "ModSync update found! ModSync will now update itself!", "ModSync", JOptionPane.INFORMATION_MESSAGE);
-            File updater;
-            try {
-                updater = downloadFile(new URL("https://github.com/littlesquirt1/JarUpdater/releases/download/1.2/JarUpdater-1.2.jar"), new File(System.getProperty("java.io.tmpdir")));
-            } catch (MalformedURLException e) {
-                JOptionPane.showMessageDialog(null, "Failed to download updater: " + e, "Error", JOptionPane.ERROR_MESSAGE);
-                throw new RuntimeException("Unexpected error", e);
-            }
-            try {
-                ProcessBuilder pb = new ProcessBuilder(
-                        System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
-                        "-jar",
-                        updater.getAbsolutePath(),
-                        // Args for updater
-                        runningJar.getAbsolutePath(),
-                        resolve(updateURL, "mod_sync_jar").toString()
-
-                );
-                pb.start();
-                System.exit(0);
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(null, "Failed to run updater: " + e, "Error", JOptionPane.ERROR_MESSAGE);
-                System.exit(1);
-            }
+        // Finish a ModSync update an earlier run couldn't swap in
+        SelfUpdate selfUpdate = new SelfUpdate(new File(System.getProperty("user.dir")), runningJar.toPath());
+        try {
+            selfUpdate.finishPending();
+        } catch (IOException e) {
+            // Tried again once this sync is done
         }
 //======================================================================================================================
-        // Get server mods list
-        Set<String> remoteMods = Arrays.stream(getFromUrl(resolve(updateURL, "modlist")).split("/"))
-                .collect(Collectors.toSet());
-//======================================================================================================================
-        // Get mods directory
-        File modsDir = new File(System.getProperty("user.dir"), "mods");
-        if (!modsDir.exists() || !modsDir.isDirectory()) {
-            if (!modsDir.mkdirs()) {
-                JOptionPane.showMessageDialog(null, "Mods directory doesn't exist!", "Error", JOptionPane.ERROR_MESSAGE);
+        // Check for modsync updates
+        MetadataCache cache = MetadataCache.forGameDir(new File(System.getProperty("user.dir")));
+        String serverModSyncClientName = null;
+        URI jarNameURI = Http.resolve(updateURL, "mod_sync_jar_name");
+        try {
+            Http.Fetched jarName = cache.fetch(jarNameURI);
+            if (jarName.status() == 404) {
+                JOptionPane.showMessageDialog(null, "Received error code 404 from " + jarNameURI, "Error", JOptionPane.ERROR_MESSAGE);
                 System.exit(1);
             }
-        }
-
-        File[] modDirList = modsDir.listFiles();
-        if (modDirList == null) {
-            JOptionPane.showMessageDialog(null, "Failed to list mods directory!", "Error", JOptionPane.ERROR_MESSAGE);
+            serverModSyncClientName = jarName.body().trim();
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(null, "Failed to get data from " + jarNameURI + ": " + e, "Error", JOptionPane.ERROR_MESSAGE);
             System.exit(1);
         }
+        // Fetch a ModSync update while the mods download; it replaces this jar once the sync is done
+        final String selfJarName = serverModSyncClientName;
+        CompletableFuture<Boolean> selfStaged = CompletableFuture.supplyAsync(() -> {
+            try {
+                return selfUpdate.stage(updateURL, selfJarName);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
 //======================================================================================================================
-        // Diff check
-        Set<File> localMods = Arrays.stream(modDirList)
-                .filter(file -> !file.getAbsolutePath().equals(runningJar.getAbsolutePath()))
-                .collect(Collectors.toSet());
-
-        Set<File> toRemove = new HashSet<>(localMods);
-        toRemove.removeIf(file -> remoteMods.contains(file.getName()));
-
-        Set<String> toDownload = new HashSet<>(remoteMods);
-        toDownload.removeIf(name -> localMods.stream().anyMatch(file -> file.getName().equals(name)));
-// =====================================================================================================================
         // Create gui
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setSize(400, 100);
@@ -126,59 +102,82 @@ public class Main extends JFrame {
         progressBar.setStringPainted(true);
 
         add(progressBar);
+
+        Sync.Listener listener = new ProgressDisplay(statusLabel, progressBar);
+        Sync sync = new Sync(new File(System.getProperty("user.dir")), config, updateURL, cache, selfUpdate.jar());
 //======================================================================================================================
-        // Delete mods
-        // TODO: Still deletes mods that don't need to be.
-        CompletableFuture.runAsync(() -> {
-            int totalFiles = toRemove.size();
-            int i = 0;
-            for (File file : toRemove) {
-                i++;
-                statusLabel.setText("Deleting " + file.getName() + " (" + i + "/" + totalFiles + ")");
-                if (!file.delete()) {
-                    JOptionPane.showMessageDialog(null, "Failed to delete file " + file.getName(), "Error", JOptionPane.ERROR_MESSAGE);
-                    System.exit(1);
-                }
-                progressBar.setValue((int) ((i / (double) toRemove.size()) * 100));
+        // Get the server manifest, falling back to the plain modlist on older servers, and download what's missing
+        // while it is still coming in. New mods go next to the old ones, mods/ stays untouched until the commit
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return sync.fetchAndDownload(listener);
+            } catch (IOException | IllegalArgumentException e) {
+                sync.writeReport();
+                JOptionPane.showMessageDialog(null, "Failed to get mods from server: " + e, "Error", JOptionPane.ERROR_MESSAGE);
+                System.exit(1);
+                return null;
             }
-        }).thenRun(() -> CompletableFuture.runAsync(() -> {
+        }).thenAccept(streamed -> {
+            final Manifest manifest = streamed.manifest();
+            final SyncPlan plan = streamed.plan();
 //======================================================================================================================
-            // Download new mods
-            URL modsURL = resolve(updateURL, "mods");
-            progressBar.setValue(0);
-            int i = 0;
-            for (String mod : toDownload) {
-                i++;
-                statusLabel.setText("Downloading " + mod + " (" + i + "/" + toDownload.size() + ")");
-                downloadFile(resolve(modsURL, "mods/" + mod), modsDir);
-                progressBar.setValue((int) ((i / (double) toDownload.size()) * 100));
+            // Install the downloads, renames and removals in one go
+            try {
+                sync.commit(plan, listener);
+            } catch (IOException e) {
+                sync.writeReport();
+                JOptionPane.showMessageDialog(null, "Failed to install mods: " + e, "Error", JOptionPane.ERROR_MESSAGE);
+                System.exit(1);
             }
-        }).thenRun(() -> {
 //======================================================================================================================
             // Verify the mod lists match
-            String[] newMods = modsDir.list();
-            if (newMods == null) {
+            boolean matches = false;
+            try {
+                matches = sync.verify(manifest);
+            } catch (IOException e) {
+                sync.writeReport();
                 JOptionPane.showMessageDialog(null, "Failed to list mods directory after download! The modpack may be wrong. Please relaunch the game!", "Error", JOptionPane.ERROR_MESSAGE);
                 System.exit(1);
             }
 
-            Set<String> newModsList = new HashSet<>();
-            Arrays.stream(newMods)
-                    .filter(fileName -> !fileName.equals(runningJar.getName()))
-                    .forEach(newModsList::add);
-
-            if (!newModsList.equals(remoteMods)) {
+            if (!matches) {
+                sync.writeReport();
                 JOptionPane.showMessageDialog(null, "Mod list does not match server after download! The modpack may be wrong. Please relaunch the game!", "Error", JOptionPane.ERROR_MESSAGE);
                 System.exit(1);
             }
 //======================================================================================================================
-            // Success
+            // Sync the other directories the pack ships, like config/
+            try {
+                sync.syncTrees(listener);
+            } catch (IOException | IllegalArgumentException e) {
+                sync.writeReport();
+                JOptionPane.showMessageDialog(null, "Mods updated, but failed to sync the other modpack files: " + e, "Error", JOptionPane.ERROR_MESSAGE);
+                System.exit(1);
+            }
+//======================================================================================================================
+            // Put the ModSync update in place for the next launch
+            try {
+                selfStaged.join();
+                selfUpdate.finish();
+            } catch (CompletionException | IOException e) {
+                sync.writeReport();
+                JOptionPane.showMessageDialog(null, "Modpack updated, but ModSync failed to update itself: " + (e instanceof CompletionException ? e.getCause() : e), "Error", JOptionPane.ERROR_MESSAGE);
+                System.exit(1);
+            }
+//======================================================================================================================
+            // Success, recorded so the next launch's check can tell nothing changed without looking through mods/
+            sync.recordState(manifest, selfJarName);
+            sync.writeReport();
             JOptionPane.showMessageDialog(null, "Modpack updated! You may now relaunch Minecraft!", "ModSync", JOptionPane.INFORMATION_MESSAGE);
             System.exit(0);
-        }));
+        });
     }
 
     public static void main(String[] args) {
+        // Any arguments mean a command line sync (see Headless) or a relay (see Relay)
+        if (args.length > 0) {
+            System.exit(args[0].equals("--relay") ? Relay.run(args) : Headless.run(args));
+        }
         SwingUtilities.invokeLater(() -> {
             try {
                 new Main();
@@ -211,16 +210,6 @@ public class Main extends JFrame {
         }
     }
 
-    private static URL resolve(URL url, String path) {
-        try {
-            return new URL(url, path);
-        } catch (MalformedURLException e) {
-            JOptionPane.showMessageDialog(null, "Failed to resolve URL: " + e, "Error", JOptionPane.ERROR_MESSAGE);
-            System.exit(1);
-            return null;
-        }
-    }
-
     private static void createDefaultConfig(File file) {
         File configDir = file.getParentFile();
         if (!configDir.exists() || !configDir.isDirectory()) {
@@ -254,64 +243,6 @@ public class Main extends JFrame {
         System.exit(0);
 
     }
-    private static String getFromUrl(URL url) {
-        HttpURLConnection connection = null;
-        try {
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-
-            int responseCode = connection.getResponseCode();
-
-            if (responseCode != HttpURLConnection.HTTP_OK) {
-                JOptionPane.showMessageDialog(null, "Received error code " + responseCode + " from " + url, "Error", JOptionPane.ERROR_MESSAGE);
-                System.exit(1);
-            }
-
-            // Read response body
-            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            StringBuilder response = new StringBuilder();
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                response.append(inputLine);
-            }
-            return response.toString();
-        } catch (Exception e) {
-            JOptionPane.showMessageDialog(null, "Failed to get data from " + url + ": " + e, "Error", JOptionPane.ERROR_MESSAGE);
-            System.exit(1);
-            return null;
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
-        }
-    }
-
-    // Assumes that the directory exists and is a directory, not a file
-    private static File downloadFile(URL url, File directory) {
-
-        String fileName = new File(url.getPath()).getName();
-        File outputFile = new File(directory, fileName);
-
-        HttpURLConnection connection = null;
-        try {
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(10000);
-            connection.setReadTimeout(10000);
-
-            InputStream in = connection.getInputStream();
-            Files.copy(in, outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            return outputFile;
-        } catch (Exception e) {
-            JOptionPane.showMessageDialog(null, "Failed to download file " + fileName + ": " + e, "Error", JOptionPane.ERROR_MESSAGE);
-            System.exit(1);
-            return null;
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
-        }
-    }
 }
 /*
 Server endpoints:
@@ -320,5 +251,22 @@ version
     returns the latest version integer
 
 modlist
-    returns a list of files in the folder, separated by \n
+    returns a list of files in the folder, separated by /
+
+mod_sync_jar_name
+    returns the file name of the current ModSync jar
+
+mod_sync_jar
+    returns the current ModSync jar; see SelfUpdate
+
+manifest (optional)
+    returns one "<sha256> <size> <name>" line per file in the folder
+
+delta/<name> (optional)
+    describes the zip records of mods/<name> so an old copy can be patched; see JarDelta
+
+tree/<root> (optional)
+    returns one "<sha256> <size> <path>" line per file under <root>, which are served at <root>/<path>; see TreeSync
+
+The text endpoints may answer with ETag/Last-Modified, 304 and gzip; see MetadataCache.
  */
\ No newline at end of file
@@ -0,0 +1,255 @@
+package com.cody.modsync;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.regex.Pattern;
+
+// The list of files the server wants in mods/, or in one of the trees TreeSync handles.
+// The "manifest" endpoint returns one "<sha256> <size> <name>" line per file.
+// Servers without it only have "modlist", which gives names separated by "/", so entries from it carry no size or hash.
+public class Manifest {
+    private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+
+    public record Entry(String name, long size, String sha256) {
+        public static Entry legacy(String name) {
+            return new Entry(name, -1, null);
+        }
+
+        public boolean hasHash() {
+            return sha256 != null;
+        }
+    }
+
+    // Called for each entry as soon as its line has been read
+    public interface EntryListener {
+        void entry(Entry entry) throws IOException;
+    }
+
+    private final List<Entry> entries;
+    private final boolean legacy;
+    private boolean notModified;
+    private String sha256;
+
+    private Manifest(List<Entry> entries, boolean legacy) {
+        this.entries = Collections.unmodifiableList(entries);
+        this.legacy = legacy;
+    }
+
+    public static Manifest fetch(URL updateURL, MetadataCache cache) throws IOException {
+        return fetch(updateURL, cache, entry -> {});
+    }
+
+    // Parses the manifest while it downloads, so work on the first entries can start before the last have arrived
+    public static Manifest fetch(URL updateURL, MetadataCache cache, EntryListener listener) throws IOException {
+        URI manifestUri = Http.resolve(updateURL, "manifest");
+        try (Http.Opened manifest = cache.open(manifestUri)) {
+            if (manifest.status() != 404) {
+                DigestInputStream text = new DigestInputStream(manifest.body(), HashIndex.newSha256());
+                return read(reader(text), listener, true).from(manifest.notModified()).hashed(text);
+            }
+        } catch (IOException e) {
+            // The body may have been cached as it was read, but shouldn't be used again
+            cache.invalidate(manifestUri);
+            throw e;
+        }
+
+        URI modlistUri = Http.resolve(updateURL, "modlist");
+        try (Http.Opened modlist = cache.open(modlistUri)) {
+            if (modlist.status() == 404) {
+                throw new IOException("Server has neither a manifest nor a modlist");
+            }
+            DigestInputStream text = new DigestInputStream(modlist.body(), HashIndex.newSha256());
+            return readLegacy(reader(text), listener).from(modlist.notModified()).hashed(text);
+        } catch (IOException e) {
+            cache.invalidate(modlistUri);
+            throw e;
+        }
+    }
+
+    // The listing of a tree other than mods/ (see TreeSync), or null if the server doesn't have one for it
+    public static Manifest fetchTree(URL updateURL, String root, MetadataCache cache) throws IOException {
+        URI treeUri = Http.resolve(updateURL, "tree/" + root);
+        try (Http.Opened tree = cache.open(treeUri)) {
+            if (tree.status() == 404) {
+                return null;
+            }
+            // Paths, checked by TreeSync against its root
+            return read(reader(tree.body()), entry -> {}, false).from(tree.notModified());
+        } catch (IOException e) {
+            cache.invalidate(treeUri);
+            throw e;
+        }
+    }
+
+    // The manifest's text as served, or the modlist's on servers without one
+    public record Listing(String body, boolean legacy, boolean notModified) {
+        public Manifest parse() throws IOException {
+            return (legacy ? parseLegacy(body) : Manifest.parse(body)).from(notModified);
+        }
+
+        // Compares listings without parsing them
+        public String sha256() {
+            return Manifest.sha256(body);
+        }
+    }
+
+    public static CompletableFuture<Listing> fetchListingAsync(URL updateURL, MetadataCache cache) {
+        return cache.fetchAsync(Http.resolve(updateURL, "manifest")).thenCompose(manifest -> {
+            if (manifest.status() != 404) {
+                return CompletableFuture.completedFuture(new Listing(manifest.body(), false, manifest.notModified()));
+            }
+
+            return cache.fetchAsync(Http.resolve(updateURL, "modlist")).thenApply(modlist -> {
+                if (modlist.status() == 404) {
+                    throw new CompletionException(new IOException("Server has neither a manifest nor a modlist"));
+                }
+                return new Listing(modlist.body(), true, modlist.notModified());
+            });
+        });
+    }
+
+    public static String sha256(String text) {
+        return HexFormat.of().formatHex(HashIndex.newSha256().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public static Manifest parse(String text) throws IOException {
+        Manifest manifest = read(new BufferedReader(new StringReader(text)), entry -> {}, true);
+        manifest.sha256 = sha256(text);
+        return manifest;
+    }
+
+    public static Manifest parseLegacy(String text) throws IOException {
+        Manifest manifest = readLegacy(new StringReader(text), entry -> {});
+        manifest.sha256 = sha256(text);
+        return manifest;
+    }
+
+    // A tree listing (see TreeSync), whose names are paths within the tree
+    public static Manifest parseTree(String text) throws IOException {
+        Manifest manifest = read(new BufferedReader(new StringReader(text)), entry -> {}, false);
+        for (Entry entry : manifest.entries) {
+            if (!isRelativePath(entry.name())) {
+                throw new IOException("Invalid path in tree listing: " + entry.name());
+            }
+        }
+        return manifest;
+    }
+
+    // A name that stays inside mods/ however it is resolved, whoever wrote the list: a relay or mirror included
+    public static boolean isFileName(String name) {
+        return !name.isEmpty() && !name.equals(".") && !name.equals("..")
+                && name.indexOf('/') < 0 && name.indexOf('\\') < 0 && name.indexOf(':') < 0;
+    }
+
+    // Only plain relative paths, so a tree listing can't reach outside its tree
+    public static boolean isRelativePath(String path) {
+        if (path.isEmpty() || path.contains("\\") || path.contains(":")) {
+            return false;
+        }
+        for (String segment : path.split("/", -1)) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Manifest read(BufferedReader in, EntryListener listener, boolean fileNames) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        String rawLine;
+        while ((rawLine = in.readLine()) != null) {
+            String line = rawLine.strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] parts = line.split(" ", 3);
+            if (parts.length != 3 || !SHA256.matcher(parts[0]).matches()) {
+                throw new IOException("Invalid manifest line: " + line);
+            }
+            Entry entry;
+            try {
+                entry = new Entry(parts[2], Long.parseLong(parts[1]), parts[0]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid size in manifest line: " + line, e);
+            }
+            if (fileNames && !isFileName(entry.name())) {
+                throw new IOException("Invalid file name in manifest line: " + line);
+            }
+            entries.add(entry);
+            listener.entry(entry);
+        }
+        return new Manifest(entries, false);
+    }
+
+    // The modlist is usually one long line, so names are split off as their "/" arrives rather than by line
+    private static Manifest readLegacy(Reader in, EntryListener listener) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        StringBuilder name = new StringBuilder();
+        int c;
+        do {
+            c = in.read();
+            if (c == -1 || c == '/' || c == '\n') {
+                if (!name.toString().isBlank()) {
+                    Entry entry = Entry.legacy(name.toString().strip());
+                    if (!isFileName(entry.name())) {
+                        throw new IOException("Invalid file name in modlist: " + entry.name());
+                    }
+                    entries.add(entry);
+                    listener.entry(entry);
+                }
+                name.setLength(0);
+            } else {
+                name.append((char) c);
+            }
+        } while (c != -1);
+        return new Manifest(entries, true);
+    }
+
+    private static BufferedReader reader(InputStream body) {
+        return new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+    }
+
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    public boolean isLegacy() {
+        return legacy;
+    }
+
+    // True if the server confirmed the cached copy is still current
+    public boolean notModified() {
+        return notModified;
+    }
+
+    // The SHA-256 of the text this was read from, the same as Listing.sha256 gives for it; null for tree listings
+    public String sha256() {
+        return sha256;
+    }
+
+    // Only once the text has been read to the end
+    private Manifest hashed(DigestInputStream text) {
+        this.sha256 = HexFormat.of().formatHex(text.getMessageDigest().digest());
+        return this;
+    }
+
+    private Manifest from(boolean notModified) {
+        this.notModified = notModified;
+        return this;
+    }
+}
@@ -0,0 +1,257 @@
+package com.cody.modsync;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HexFormat;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// On-disk cache for the small text endpoints (manifest, modlist, mod_sync_jar_name).
+// Requests are revalidated with the stored ETag and Last-Modified, so an unchanged endpoint only costs a 304.
+// Shared by the in-game check and the GUI, which both run from the same game directory.
+public class MetadataCache {
+    private record Cached(String etag, String lastModified) {}
+
+    private final Path dir;
+
+    public MetadataCache(Path dir) {
+        this.dir = dir;
+    }
+
+    public static MetadataCache forGameDir(File gameDir) {
+        return new MetadataCache(gameDir.toPath().resolve(".modsync").resolve("cache"));
+    }
+
+    public Http.Fetched fetch(URI uri) throws IOException {
+        return Http.await(fetchAsync(uri), uri);
+    }
+
+    // A 304 is returned with the cached body, so callers always get a body unless the endpoint is missing (404)
+    public CompletableFuture<Http.Fetched> fetchAsync(URI uri) {
+        Cached cached = load(uri);
+        String etag = cached == null ? null : cached.etag;
+        String lastModified = cached == null ? null : cached.lastModified;
+
+        return Http.fetchAsync(uri, etag, lastModified).thenApply(fetched -> {
+            if (fetched.notModified() && cached != null) {
+                try {
+                    return new Http.Fetched(304, Files.readString(bodyFile(uri), StandardCharsets.UTF_8), cached.etag, cached.lastModified);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }
+            try {
+                if (fetched.status() == 200) {
+                    store(uri, fetched);
+                } else {
+                    delete(uri);
+                }
+            } catch (IOException e) {
+                // The cache is only an optimization, the response itself is fine
+            }
+            return fetched;
+        });
+    }
+
+    // As fetch, but the body is streamed: a 304 is read from the cached copy, and a 200 is copied into the cache as the
+    // caller reads it, which only replaces the cached copy once the body has been read to the end
+    public Http.Opened open(URI uri) throws IOException {
+        Cached cached = load(uri);
+        Http.Opened opened = Http.open(uri, cached == null ? null : cached.etag, cached == null ? null : cached.lastModified);
+        if (opened.notModified() && cached != null) {
+            opened.close();
+            return new Http.Opened(304, Files.newInputStream(bodyFile(uri)), cached.etag, cached.lastModified);
+        }
+        if (opened.status() == 200 && (opened.etag() != null || opened.lastModified() != null)) {
+            try {
+                Files.createDirectories(dir);
+                return new Http.Opened(200, new CachingStream(uri, opened), opened.etag(), opened.lastModified());
+            } catch (IOException e) {
+                // Served without caching
+            }
+        }
+        try {
+            delete(uri);
+        } catch (IOException e) {
+            // A stale copy is only revalidated next time
+        }
+        return opened;
+    }
+
+    // Drops the cached copy, for a body that turned out to be unusable
+    public void invalidate(URI uri) {
+        try {
+            delete(uri);
+        } catch (IOException e) {
+            // It is still replaced by the next 200
+        }
+    }
+
+    private Cached load(URI uri) {
+        Path meta = metaFile(uri);
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(meta)) {
+            properties.load(in);
+            // Guards against two URIs sharing a hash, however unlikely
+            if (!uri.toString().equals(properties.getProperty("uri"))) {
+                return null;
+            }
+            if (!Files.exists(bodyFile(uri))) {
+                return null;
+            }
+            return new Cached(properties.getProperty("etag"), properties.getProperty("last_modified"));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void store(URI uri, Http.Fetched fetched) throws IOException {
+        if (fetched.etag() == null && fetched.lastModified() == null) {
+            // Nothing to revalidate with
+            delete(uri);
+            return;
+        }
+
+        Files.createDirectories(dir);
+        // The body goes first, so the metadata never describes a body that isn't there
+        writeAtomically(bodyFile(uri), out -> out.write(fetched.body().getBytes(StandardCharsets.UTF_8)));
+        storeMeta(uri, fetched.etag(), fetched.lastModified());
+    }
+
+    private void storeMeta(URI uri, String etag, String lastModified) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("uri", uri.toString());
+        if (etag != null) {
+            properties.setProperty("etag", etag);
+        }
+        if (lastModified != null) {
+            properties.setProperty("last_modified", lastModified);
+        }
+        writeAtomically(metaFile(uri), out -> properties.store(out, null));
+    }
+
+    private void delete(URI uri) throws IOException {
+        Files.deleteIfExists(metaFile(uri));
+        Files.deleteIfExists(bodyFile(uri));
+    }
+
+    private interface Writer {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private static void writeAtomically(Path file, Writer writer) throws IOException {
+        Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                writer.write(out);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Copies a body into a temporary file as it is read, and stores it once read to the end.
+    // Failing to write the copy only means it isn't cached, the caller still gets the whole body.
+    private final class CachingStream extends FilterInputStream {
+        private final URI uri;
+        private final Http.Opened opened;
+        private final Path temp;
+        private OutputStream copy;
+        private boolean complete;
+
+        CachingStream(URI uri, Http.Opened opened) throws IOException {
+            super(opened.body());
+            this.uri = uri;
+            this.opened = opened;
+            this.temp = Files.createTempFile(dir, key(uri), ".tmp");
+            this.copy = Files.newOutputStream(temp);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                complete = true;
+            } else {
+                copy(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read == -1) {
+                complete = true;
+            } else {
+                copy(buffer, offset, read);
+            }
+            return read;
+        }
+
+        private void copy(byte[] buffer, int offset, int length) {
+            if (copy == null) {
+                return;
+            }
+            try {
+                copy.write(buffer, offset, length);
+            } catch (IOException e) {
+                abandon();
+            }
+        }
+
+        private void abandon() {
+            try {
+                copy.close();
+            } catch (IOException ignored) {
+                // Deleted below either way
+            }
+            copy = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            try {
+                if (copy != null && complete) {
+                    copy.close();
+                    copy = null;
+                    // Without its metadata an old body is never revalidated against, so the swap can't mix the two
+                    Files.deleteIfExists(metaFile(uri));
+                    Files.move(temp, bodyFile(uri), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    storeMeta(uri, opened.etag(), opened.lastModified());
+                }
+            } catch (IOException e) {
+                // Only the cached copy is lost
+            } finally {
+                if (copy != null) {
+                    abandon();
+                }
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    private Path metaFile(URI uri) {
+        return dir.resolve(key(uri) + ".properties");
+    }
+
+    private Path bodyFile(URI uri) {
+        return dir.resolve(key(uri) + ".body");
+    }
+
+    private static String key(URI uri) {
+        byte[] hash = HashIndex.newSha256().digest(uri.toString().getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(hash, 0, 16);
+    }
+}
@@ -0,0 +1,168 @@
+package com.cody.modsync;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+// The places mods can be downloaded from: the update URL plus any "mirror=" lines in the config.
+// Mirrors are ranked by the time they'd take for a typical jar, from their latency and measured throughput,
+// and one that fails is skipped for a while so downloads fail over to the next.
+public class Mirrors {
+    private static final Duration PROBE_TIMEOUT = Duration.ofSeconds(3);
+    // The size ranking is done for, so both latency and throughput count
+    private static final long REFERENCE_BYTES = 4L * 1024 * 1024;
+    private static final long BASE_COOLDOWN_MILLIS = 10_000;
+    // Weight of the newest sample in the smoothed throughput
+    private static final double SMOOTHING = 0.3;
+
+    private static final class Mirror {
+        final URL base;
+        long latencyMillis = -1;
+        double bytesPerSecond;
+        int failures;
+        long failedUntil;
+
+        Mirror(URL base) {
+            this.base = base;
+        }
+
+        // Estimated milliseconds to fetch REFERENCE_BYTES; unmeasured mirrors look fast so they get tried
+        double cost() {
+            double transfer = bytesPerSecond > 0 ? REFERENCE_BYTES * 1000 / bytesPerSecond : 0;
+            return Math.max(0, latencyMillis) + transfer;
+        }
+    }
+
+    private final List<Mirror> mirrors = new ArrayList<>();
+    private boolean probed;
+
+    private Mirrors(Collection<URL> bases) {
+        bases.forEach(base -> mirrors.add(new Mirror(base)));
+    }
+
+    public static Mirrors single(URL base) {
+        return new Mirrors(List.of(base));
+    }
+
+    // The update URL comes first and breaks ties. Mirror URLs without a protocol are taken as http, like the update URL.
+    public static Mirrors of(URL primary, List<String> mirrorUrls) throws MalformedURLException {
+        List<URL> bases = new ArrayList<>();
+        bases.add(primary);
+        for (String mirror : mirrorUrls) {
+            String url = mirror.matches("^(?i)https?://.*") ? mirror : "http://" + mirror;
+            bases.add(new URL(url.endsWith("/") ? url : url + "/"));
+        }
+        return new Mirrors(bases);
+    }
+
+    public int size() {
+        return mirrors.size();
+    }
+
+    public URL primary() {
+        return mirrors.get(0).base;
+    }
+
+    // Measures each mirror's latency with a HEAD request for path, once. Mirrors that don't answer are put on cooldown.
+    public void probe(String path) {
+        synchronized (this) {
+            if (probed || mirrors.size() < 2) {
+                probed = true;
+                return;
+            }
+            probed = true;
+        }
+
+        List<CompletableFuture<Void>> probes = new ArrayList<>();
+        for (Mirror mirror : mirrors) {
+            URI uri = Http.resolve(mirror.base, path);
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .timeout(PROBE_TIMEOUT)
+                    .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                    .build();
+            long started = System.nanoTime();
+            probes.add(Http.CLIENT.sendAsync(request, HttpResponse.BodyHandlers.discarding()).handle((response, error) -> {
+                synchronized (this) {
+                    if (error == null && response.statusCode() == 200) {
+                        mirror.latencyMillis = (System.nanoTime() - started) / 1_000_000;
+                    } else {
+                        markFailed(mirror);
+                    }
+                }
+                return null;
+            }));
+        }
+        CompletableFuture.allOf(probes.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    // Mirrors that aren't cooling down after a failure, best first; if all are, every mirror, best first
+    public synchronized List<URL> ranked() {
+        long now = System.currentTimeMillis();
+        List<Mirror> available = mirrors.stream().filter(mirror -> mirror.failedUntil <= now).toList();
+        List<Mirror> sorted = new ArrayList<>(available.isEmpty() ? mirrors : available);
+        // Stable sort, so ties keep config order
+        sorted.sort(Comparator.comparingDouble(Mirror::cost));
+        return sorted.stream().map(mirror -> mirror.base).toList();
+    }
+
+    // The best mirror not in tried, or the best overall once every mirror has been tried.
+    // Mirrors are told apart by their URL string, as URL.equals looks up host names.
+    public URL best(Set<String> tried) {
+        List<URL> ranked = ranked();
+        return ranked.stream().filter(base -> !tried.contains(base.toString())).findFirst().orElse(ranked.get(0));
+    }
+
+    public synchronized boolean allTried(Set<String> tried) {
+        return mirrors.stream().allMatch(mirror -> tried.contains(mirror.base.toString()));
+    }
+
+    // Records a finished request: first-byte latency and how fast the body came in
+    public synchronized void succeeded(URL base, long latencyMillis, long bytes, long nanos) {
+        Mirror mirror = find(base);
+        mirror.failures = 0;
+        mirror.latencyMillis = mirror.latencyMillis < 0 ? latencyMillis : (long) (mirror.latencyMillis + SMOOTHING * (latencyMillis - mirror.latencyMillis));
+        // Small bodies say more about latency than throughput
+        if (bytes >= 256 * 1024 && nanos > 0) {
+            double sample = bytes * 1e9 / nanos;
+            mirror.bytesPerSecond = mirror.bytesPerSecond == 0 ? sample : mirror.bytesPerSecond + SMOOTHING * (sample - mirror.bytesPerSecond);
+        }
+    }
+
+    public synchronized void failed(URL base) {
+        markFailed(find(base));
+    }
+
+    // Cooldown doubles with each failure in a row
+    private void markFailed(Mirror mirror) {
+        mirror.failures++;
+        mirror.failedUntil = System.currentTimeMillis() + (BASE_COOLDOWN_MILLIS << Math.min(mirror.failures - 1, 5));
+    }
+
+    private Mirror find(URL base) {
+        for (Mirror mirror : mirrors) {
+            if (mirror.base.toString().equals(base.toString())) {
+                return mirror;
+            }
+        }
+        throw new IllegalArgumentException("Unknown mirror " + base);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Mirror mirror : mirrors) {
+            text.append(mirror.base).append(" latency=").append(mirror.latencyMillis).append("ms rate=")
+                    .append((long) (mirror.bytesPerSecond / 1024)).append("KB/s failures=").append(mirror.failures).append('\n');
+        }
+        return text.toString();
+    }
+}
@@ -7,23 +7,23 @@ import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.loading.FMLEnvironment;
 import org.slf4j.Logger;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.file.Files;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 // The value here should match an entry in the META-INF/mods.toml file
 @Mod("modsync")
 public class ModSync
 {
     private static final Logger LOGGER = LogUtils.getLogger();
+    // How long game startup may wait on the update check
+    private static final long UPDATE_CHECK_BUDGET_MILLIS = 300;
+
     public ModSync() {
         // Client only
         if (FMLEnvironment.dist != Dist.CLIENT) {
@@ -32,36 +32,43 @@ public class ModSync
         try {
 //======================================================================================================================
             // Get update url from config file
-            File configFile = new File(System.getProperty("user.dir"), "config" + File.separator + "modsync.txt");
+            File configFile = SyncConfig.file(new File(System.getProperty("user.dir")));
 
             // If there is a config, check for updates. Otherwise, just launch the GUI for initial setup.
             // If there are no updates, return.
             if (configFile.exists()) {
+                SyncConfig config;
                 URL updateUrl;
                 try {
-                    updateUrl = toUrl(Files.readString(configFile.toPath()).trim());
+                    config = SyncConfig.read(configFile);
+                    updateUrl = toUrl(config.url());
                 } catch (IOException e) {
                     // TODO: Add message on game startup if the config file is invalid. Don't crash game.
                     LOGGER.error("Failed to read config file.", e);
                     throw new RuntimeException("Failed to read config file.", e);
                 }
                 //======================================================================================================================
-                // Get server mod array
-                Set<String> serverModList = new HashSet<>(Arrays.asList(getFromUrl(new URL(updateUrl, "modlist")).split("/")));
-                serverModList.add(getFromUrl(new URL(updateUrl, "mod_sync_jar_name")));
-
-
-                // Get local mod file name array
-                File modsDir = new File(System.getProperty("user.dir"), "mods");
-                // If modsDir is valid. Otherwise, let the GUI handle it.
-                if (modsDir.exists() && modsDir.isDirectory()) {
+                // Check for updates in the background, but only hold up game startup for a short while
+                CompletableFuture<Boolean> check = new UpdateCheck(updateUrl, new File(System.getProperty("user.dir")), config).start();
+                try {
                     // If mods match server, return. Otherwise, run the updater GUI.
-                    String[] localModList = modsDir.list();
-                    if (localModList != null && serverModList.equals(new HashSet<>(Arrays.asList(localModList)))) {
+                    if (check.get(UPDATE_CHECK_BUDGET_MILLIS, TimeUnit.MILLISECONDS)) {
                         return;
                     }
+                } catch (TimeoutException e) {
+                    // The check keeps running and stores its result, so an outdated pack is picked up on the next launch
+                    LOGGER.warn("Update check took longer than " + UPDATE_CHECK_BUDGET_MILLIS + "ms, continuing startup.");
+                    check.thenAccept(upToDate -> {
+                        if (!upToDate) {
+                            LOGGER.warn("Modpack is out of date, it will be updated on the next launch.");
+                        }
+                    });
+                    return;
+                } catch (ExecutionException e) {
+                    // TODO: Add message on game startup if the update check fails. Don't crash game.
+                    LOGGER.error("Failed to check for updates.", e.getCause());
+                    return;
                 }
-
             }
             //======================================================================================================================
             // Get the running jar file
@@ -80,13 +87,9 @@ public class ModSync
 
             if (jarFile.exists()) {
                 try {
-                    // Get java executable path
-                    String javaPath = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
-                    if (System.getProperty("os.name").toLowerCase().contains("win")) {
-                        javaPath += ".exe";
-                    }
-                    // Run the external JAR
-                    Runtime.getRuntime().exec(new String[]{javaPath, "-jar", jarFile.getAbsolutePath()});
+                    // Start the GUI in a lean JVM of its own, see JvmLauncher. Named as a string, as Main.class would
+                    // load Main, and with it JFrame and AWT, into the game.
+                    JvmLauncher.start(new File(System.getProperty("user.dir")), jarFile.toPath(), "com.cody.modsync.Main", false);
 
                     // Gracefully stop the game
                     System.exit(0);
@@ -124,38 +127,4 @@ public class ModSync
             throw new RuntimeException("Invalid URL: " + urlString, e);
         }
     }
-
-    public static String getFromUrl(URL url) {
-        HttpURLConnection connection = null;
-        try {
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-
-            int responseCode = connection.getResponseCode();
-
-            if (responseCode != HttpURLConnection.HTTP_OK) {
-                // TODO: Add message on game startup if the request is bad. Don't crash game.
-                LOGGER.error("Failed to get data from " + url + ". Response code: " + responseCode);
-                throw new RuntimeException("Failed to get data from " + url + ". Response code: " + responseCode);
-            }
-
-            // Read response body
-            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            StringBuilder response = new StringBuilder();
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                response.append(inputLine);
-            }
-            return response.toString();
-        } catch (Exception e) {
-            // TODO: Add message on game startup if the URL is invalid. Don't crash game.
-            LOGGER.error("Failed to get data from " + url, e);
-            throw new RuntimeException("Failed to get data from " + url, e);
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
-        }
-
-    }
 }
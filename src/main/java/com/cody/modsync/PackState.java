@@ -0,0 +1,85 @@
+package com.cody.modsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+// What the last sync or update check found, in .modsync/state.txt: the modification time of mods/ itself, the SHA-256
+// of the manifest's text, the ModSync jar name the server gave and whether mods/ matched them.
+// While mods/ keeps its time and the server sends the same manifest and jar name, which is usually a 304 for both, the
+// in-game check reuses that verdict without parsing the manifest or listing, stat-ing or hashing anything in mods/.
+// Adding, removing or renaming a jar changes the time of mods/; a jar overwritten in place doesn't, and is noticed
+// once the pack changes.
+public class PackState {
+    private static final String FILE = "state.txt";
+
+    private final Path file;
+    private final Properties properties;
+
+    private PackState(File gameDir, Properties properties) {
+        this.file = gameDir.toPath().resolve(".modsync").resolve(FILE);
+        this.properties = properties;
+    }
+
+    public static PackState load(File gameDir) {
+        PackState state = new PackState(gameDir, new Properties());
+        try (InputStream in = Files.newInputStream(state.file)) {
+            state.properties.load(in);
+        } catch (IOException e) {
+            // No state yet, so the next check is a full one
+            state.properties.clear();
+        }
+        return state;
+    }
+
+    // -1 if mods/ isn't there
+    public static long modsModified(File gameDir) {
+        try {
+            return Files.getLastModifiedTime(gameDir.toPath().resolve("mods")).toMillis();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    public boolean modsUnchanged(long modsModified) {
+        return modsModified >= 0 && Long.toString(modsModified).equals(properties.getProperty("mods_modified"));
+    }
+
+    // Null if nothing was recorded yet
+    public Boolean upToDate() {
+        String upToDate = properties.getProperty("up_to_date");
+        return upToDate == null ? null : Boolean.valueOf(upToDate);
+    }
+
+    // Whether the verdict was reached against this manifest text and jar name
+    public boolean matches(String manifestSha256, String jarName) {
+        return upToDate() != null
+                && manifestSha256.equals(properties.getProperty("manifest"))
+                && jarName.equals(properties.getProperty("jar_name"));
+    }
+
+    // modsModified should be taken before mods/ was looked at, so a change made meanwhile shows up next time
+    public void record(long modsModified, String manifestSha256, String jarName, boolean upToDate) throws IOException {
+        properties.setProperty("mods_modified", Long.toString(modsModified));
+        properties.setProperty("manifest", manifestSha256);
+        properties.setProperty("jar_name", jarName);
+        properties.setProperty("up_to_date", Boolean.toString(upToDate));
+
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(FILE + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            properties.store(out, "ModSync pack state");
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.cody.modsync;
+
+import javax.swing.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Sync listener for the GUI. Download threads only update counters here; a Swing timer repaints
+// the label and bar a few times a second instead of queueing an EDT task per event.
+class ProgressDisplay implements Sync.Listener {
+    private static final int FRAME_MILLIS = 100;
+    // Weight of the newest sample in the smoothed download rate
+    private static final double RATE_SMOOTHING = 0.2;
+
+    private final JLabel statusLabel;
+    private final JProgressBar progressBar;
+    private final Timer timer;
+
+    private final AtomicReference<String> status = new AtomicReference<>("");
+    private final AtomicInteger filesDone = new AtomicInteger();
+    private final AtomicInteger filesTotal = new AtomicInteger();
+    private final AtomicLong bytesDone = new AtomicLong();
+    private final AtomicLong bytesTotal = new AtomicLong();
+
+    // Only touched on the EDT
+    private long lastBytes;
+    private long lastTick;
+    private double bytesPerSecond;
+
+    ProgressDisplay(JLabel statusLabel, JProgressBar progressBar) {
+        this.statusLabel = statusLabel;
+        this.progressBar = progressBar;
+        this.timer = new Timer(FRAME_MILLIS, event -> render());
+        this.lastTick = System.nanoTime();
+        timer.start();
+    }
+
+    @Override
+    public void status(String message) {
+        status.set(message);
+    }
+
+    @Override
+    public void progress(int done, int total) {
+        filesDone.set(done);
+        filesTotal.set(total);
+    }
+
+    @Override
+    public void downloadStarted() {
+        bytesDone.set(0);
+        bytesTotal.set(0);
+    }
+
+    @Override
+    public void transferred(long bytes, long totalBytes) {
+        bytesDone.accumulateAndGet(bytes, Math::max);
+        bytesTotal.set(totalBytes);
+    }
+
+    private void render() {
+        statusLabel.setText(status.get());
+
+        long now = System.nanoTime();
+        long bytes = bytesDone.get();
+        long total = bytesTotal.get();
+        double seconds = (now - lastTick) / 1e9;
+        if (bytes < lastBytes) {
+            // The next stage, counting from 0 again
+            lastBytes = 0;
+            bytesPerSecond = 0;
+        }
+        if (seconds > 0) {
+            double sample = (bytes - lastBytes) / seconds;
+            bytesPerSecond = bytesPerSecond == 0 ? sample : bytesPerSecond + RATE_SMOOTHING * (sample - bytesPerSecond);
+        }
+        lastBytes = bytes;
+        lastTick = now;
+
+        // Without sizes from the server there's nothing to measure bytes against, so fall back to counting files
+        if (total <= 0) {
+            int files = filesTotal.get();
+            progressBar.setValue(files == 0 ? 100 : (int) (filesDone.get() * 100L / files));
+            progressBar.setString(null);
+            return;
+        }
+
+        progressBar.setValue((int) (Math.min(bytes, total) * 100 / total));
+        String text = megabytes(Math.min(bytes, total)) + " / " + megabytes(total) + " MB";
+        if (bytes < total && bytesPerSecond >= 1) {
+            long eta = (long) ((total - bytes) / bytesPerSecond);
+            text += ", " + megabytes((long) bytesPerSecond) + " MB/s, " + eta / 60 + ":" + String.format("%02d", eta % 60) + " left";
+        }
+        progressBar.setString(text);
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format("%.1f", bytes / (1024.0 * 1024.0));
+    }
+}
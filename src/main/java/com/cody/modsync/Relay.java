@@ -0,0 +1,579 @@
+package com.cody.modsync;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Caching relay for LAN events and shared hosts: serves the server endpoints to clients from a local disk cache
+//     java -jar modsync.jar --relay <upstream url> [--port <port>] [--cache <dir>]
+// Clients point their config/modsync.txt at the relay instead of the server.
+// Text endpoints, tree listings (tree/<root>) included, are revalidated upstream at most every few seconds. Files,
+// from mods/ or from a tree at <root>/<path>, are fetched from upstream once, keyed by their hash in the listing (or
+// by mod list version on servers without a manifest), and concurrent requests for a file that is still being
+// fetched wait for that one fetch. Cached files go out with FileChannel.transferTo, which the OS can send without
+// copying them through the JVM.
+public class Relay {
+    public static final int DEFAULT_PORT = 8080;
+
+    private static final Set<String> TEXT_ENDPOINTS = Set.of("modlist", "manifest", "mod_sync_jar_name", "version");
+    private static final long TEXT_TTL_MILLIS = 5000;
+    // Idle keep-alive connections are closed after this
+    private static final int IDLE_TIMEOUT_MILLIS = 30000;
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+    private static final String USAGE = "Usage: java -jar modsync.jar --relay <upstream url> [--port <port>] [--cache <dir>]";
+
+    private record Request(String method, String path, Map<String, String> headers, boolean keepAlive) {
+        String header(String name) {
+            return headers.get(name);
+        }
+    }
+
+    // entries is only set for manifest, modlist and tree listings, and lists what the upstream serves
+    private record Text(int status, byte[] body, String etag, long fetchedAt, Map<String, Manifest.Entry> entries) {}
+
+    private final URL upstream;
+    private final Path cacheDir;
+    private final PrintStream out;
+    private final MetadataCache metadata;
+    private final Map<String, Text> texts = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Text>> refreshing = new ConcurrentHashMap<>();
+    private final Map<Path, CompletableFuture<Path>> filling = new ConcurrentHashMap<>();
+    private final ExecutorService connections;
+    private ServerSocketChannel server;
+
+    public Relay(URL upstream, Path cacheDir, PrintStream out) {
+        this.upstream = upstream;
+        this.cacheDir = cacheDir;
+        this.out = out;
+        this.metadata = new MetadataCache(cacheDir.resolve("meta"));
+        AtomicInteger threadId = new AtomicInteger();
+        this.connections = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "ModSync relay " + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static int run(String[] args) {
+        URL upstream = null;
+        int port = DEFAULT_PORT;
+        Path cacheDir = Path.of("modsync-relay");
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--relay" -> upstream = new URL(withProtocol(args[++i]));
+                    case "--port" -> port = Integer.parseInt(args[++i]);
+                    case "--cache" -> cacheDir = Path.of(args[++i]);
+                    default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Invalid arguments: " + e.getMessage());
+            System.err.println(USAGE);
+            return Headless.EXIT_USAGE;
+        }
+        if (upstream == null) {
+            System.err.println(USAGE);
+            return Headless.EXIT_USAGE;
+        }
+
+        Relay relay = new Relay(upstream, cacheDir, System.out);
+        try {
+            InetSocketAddress address = relay.start(port);
+            System.out.println("Relaying " + upstream + " on port " + address.getPort() + ", cache in " + cacheDir.toAbsolutePath());
+            relay.acceptLoop();
+            return Headless.EXIT_OK;
+        } catch (IOException e) {
+            System.err.println("Relay failed: " + e);
+            return Headless.EXIT_FAILED;
+        }
+    }
+
+    private static String withProtocol(String url) {
+        // Same as the GUI, a URL without a protocol is taken as http
+        return url.matches("^(?i)https?://.*") ? url : "http://" + url;
+    }
+
+    // Binds the port; requests are only answered once acceptLoop runs
+    public InetSocketAddress start(int port) throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    public void acceptLoop() throws IOException {
+        while (server.isOpen()) {
+            SocketChannel client;
+            try {
+                client = server.accept();
+            } catch (IOException e) {
+                if (!server.isOpen()) {
+                    return;
+                }
+                throw e;
+            }
+            connections.execute(() -> handle(client));
+        }
+    }
+
+    public void close() throws IOException {
+        server.close();
+        connections.shutdownNow();
+    }
+
+    //==================================================================================================================
+    // HTTP/1.1 with keep-alive, just enough for ModSync clients and browsers
+
+    private void handle(SocketChannel client) {
+        try (client) {
+            Socket socket = client.socket();
+            socket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            while (true) {
+                Request request = readRequest(in);
+                if (request == null) {
+                    return;
+                }
+                respond(client, request);
+                if (!request.keepAlive()) {
+                    return;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // Idle keep-alive connection
+        } catch (IOException e) {
+            // Client went away
+        }
+    }
+
+    // Returns null once the client closes the connection
+    private static Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null) {
+            return null;
+        }
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3) {
+            throw new IOException("Malformed request line: " + requestLine);
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        int headerBytes = requestLine.length();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            headerBytes += line.length();
+            if (headerBytes > MAX_HEADER_BYTES) {
+                throw new IOException("Request headers too large");
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+
+        String path;
+        try {
+            path = new URI(parts[1]).getPath();
+        } catch (URISyntaxException e) {
+            throw new IOException("Malformed request target: " + parts[1], e);
+        }
+        String connection = headers.getOrDefault("connection", "");
+        boolean keepAlive = parts[2].equals("HTTP/1.1") ? !connection.equalsIgnoreCase("close") : connection.equalsIgnoreCase("keep-alive");
+        return new Request(parts[0], path.startsWith("/") ? path.substring(1) : path, headers, keepAlive);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                String text = line.toString(StandardCharsets.ISO_8859_1);
+                return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+            }
+            if (line.size() >= MAX_HEADER_BYTES) {
+                throw new IOException("Request line too long");
+            }
+            line.write(b);
+        }
+        return line.size() == 0 ? null : line.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    private void respond(SocketChannel client, Request request) throws IOException {
+        if (!request.method().equals("GET") && !request.method().equals("HEAD")) {
+            sendStatus(client, request, 405);
+            return;
+        }
+
+        String path = request.path();
+        try {
+            if (path.startsWith("mods/") && Manifest.isFileName(path.substring(5))) {
+                sendMod(client, request, path.substring(5));
+            } else if (path.equals("mod_sync_jar")) {
+                sendSelfJar(client, request);
+            } else if (TEXT_ENDPOINTS.contains(path) || (path.startsWith("delta/") && Manifest.isFileName(path.substring(6)))
+                    || (path.startsWith("tree/") && Manifest.isRelativePath(path.substring(5)))) {
+                Text text = text(path);
+                sendText(client, request, text);
+            } else if (!sendTreeFile(client, request, path)) {
+                sendStatus(client, request, 404);
+            }
+        } catch (DownloadEngine.HttpStatusException e) {
+            sendStatus(client, request, e.status == 404 ? 404 : 502);
+        } catch (IOException e) {
+            if (!client.isOpen() || !client.isConnected()) {
+                throw e;
+            }
+            out.println("Failed to relay " + path + ": " + e);
+            sendStatus(client, request, 502);
+        }
+    }
+
+    private void sendText(SocketChannel client, Request request, Text text) throws IOException {
+        if (text.status() != 200) {
+            sendStatus(client, request, text.status());
+            return;
+        }
+        if (text.etag().equals(request.header("if-none-match"))) {
+            writeHead(client, request, 304, Map.of("ETag", text.etag()), -1);
+            return;
+        }
+
+        writeHead(client, request, 200, Map.of("ETag", text.etag(), "Content-Type", "text/plain; charset=utf-8"), text.body().length);
+        if (request.method().equals("GET")) {
+            ByteBuffer body = ByteBuffer.wrap(text.body());
+            while (body.hasRemaining()) {
+                client.write(body);
+            }
+        }
+    }
+
+    private void sendFile(SocketChannel client, Request request, Path file, String etag) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            String lastModified = HTTP_DATE.format(Files.getLastModifiedTime(file).toInstant());
+            if (etag.equals(request.header("if-none-match"))) {
+                writeHead(client, request, 304, Map.of("ETag", etag), -1);
+                return;
+            }
+
+            Map<String, String> headers = new HashMap<>();
+            headers.put("ETag", etag);
+            headers.put("Last-Modified", lastModified);
+            headers.put("Accept-Ranges", "bytes");
+            headers.put("Content-Type", file.getFileName().toString().endsWith(".jar") ? "application/java-archive" : "application/octet-stream");
+
+            long start = 0;
+            long length = size;
+            int status = 200;
+            String range = request.header("range");
+            String ifRange = request.header("if-range");
+            // A Range whose If-Range validator is stale gets the whole, new file
+            if (range != null && (ifRange == null || ifRange.equals(etag) || ifRange.equals(lastModified))) {
+                long[] bounds = parseRange(range, size);
+                if (bounds == null) {
+                    headers.put("Content-Range", "bytes */" + size);
+                    writeHead(client, request, 416, headers, 0);
+                    return;
+                }
+                start = bounds[0];
+                length = bounds[1] - bounds[0] + 1;
+                status = 206;
+                headers.put("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + size);
+            }
+
+            writeHead(client, request, status, headers, length);
+            if (request.method().equals("GET")) {
+                long position = start;
+                long remaining = length;
+                while (remaining > 0) {
+                    long sent = channel.transferTo(position, remaining, client);
+                    position += sent;
+                    remaining -= sent;
+                }
+            }
+        }
+    }
+
+    // One "bytes=first-last", "bytes=first-" or "bytes=-suffix" range as inclusive bounds, or null if unsatisfiable
+    private static long[] parseRange(String range, long size) {
+        if (!range.startsWith("bytes=") || range.contains(",")) {
+            return null;
+        }
+        String[] bounds = range.substring(6).trim().split("-", -1);
+        try {
+            if (bounds.length != 2) {
+                return null;
+            }
+            if (bounds[0].isEmpty()) {
+                long suffix = Long.parseLong(bounds[1]);
+                return suffix <= 0 || size == 0 ? null : new long[]{Math.max(0, size - suffix), size - 1};
+            }
+            long first = Long.parseLong(bounds[0]);
+            long last = bounds[1].isEmpty() ? size - 1 : Math.min(Long.parseLong(bounds[1]), size - 1);
+            return first >= size || last < first ? null : new long[]{first, last};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void sendStatus(SocketChannel client, Request request, int status) throws IOException {
+        writeHead(client, request, status, Map.of(), 0);
+    }
+
+    private static void writeHead(SocketChannel client, Request request, int status, Map<String, String> headers, long contentLength) throws IOException {
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+        head.append("Date: ").append(HTTP_DATE.format(ZonedDateTime.now(ZoneOffset.UTC))).append("\r\n");
+        headers.forEach((name, value) -> head.append(name).append(": ").append(value).append("\r\n"));
+        if (contentLength >= 0) {
+            head.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        if (!request.keepAlive()) {
+            head.append("Connection: close\r\n");
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(head.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1));
+        while (bytes.hasRemaining()) {
+            client.write(bytes);
+        }
+    }
+
+    private static String reason(int status) {
+        return switch (status) {
+            case 200 -> "OK";
+            case 206 -> "Partial Content";
+            case 304 -> "Not Modified";
+            case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 416 -> "Range Not Satisfiable";
+            default -> "Bad Gateway";
+        };
+    }
+
+    //==================================================================================================================
+    // Upstream
+
+    private void sendMod(SocketChannel client, Request request, String name) throws IOException {
+        Text manifest = text("manifest");
+        Text listing = manifest.status() == 200 ? manifest : text("modlist");
+        Manifest.Entry entry = listing.entries() == null ? null : listing.entries().get(name);
+        if (entry == null) {
+            sendStatus(client, request, 404);
+            return;
+        }
+        sendListed(client, request, "mods/", entry, listing);
+    }
+
+    // A file of a tree at <root>/<path>, from the listing of the longest root it is in. Only roots a client has
+    // already asked for the listing of are looked up, as clients always do that first, so stray paths aren't tried
+    // upstream. Returns false if no listing has the file.
+    private boolean sendTreeFile(SocketChannel client, Request request, String path) throws IOException {
+        if (!Manifest.isRelativePath(path)) {
+            return false;
+        }
+        for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+            String listingPath = "tree/" + path.substring(0, slash);
+            if (!texts.containsKey(listingPath)) {
+                continue;
+            }
+            Text listing = text(listingPath);
+            Manifest.Entry entry = listing.entries() == null ? null : listing.entries().get(path.substring(slash + 1));
+            if (entry != null) {
+                sendListed(client, request, path.substring(0, slash + 1), entry, listing);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Sends a listed file, fetching it from <upstream>/<remoteDir><name> into the cache first if needed
+    private void sendListed(SocketChannel client, Request request, String remoteDir, Manifest.Entry entry, Text listing) throws IOException {
+        // Unhashed files are kept per mod list version, as a name alone doesn't say which version it is
+        String key = entry.hasHash() ? entry.sha256() : "list-" + listing.etag().replace("\"", "");
+        Path dir = cacheDir.resolve("files").resolve(key);
+        Path file = cached(dir.resolve(entry.name()), target -> {
+            try (DownloadEngine engine = new DownloadEngine(1, cacheDir.resolve("downloads").resolve(key)).fromDirectory(remoteDir)) {
+                engine.downloadAll(upstream, List.of(entry), dir, (name, done, total) -> {});
+            }
+            out.println("Cached " + remoteDir + entry.name());
+        });
+        sendFile(client, request, file, entry.hasHash() ? "\"" + entry.sha256() + "\"" : "\"" + key + "\"");
+    }
+
+    private void sendSelfJar(SocketChannel client, Request request) throws IOException {
+        Text jarName = text("mod_sync_jar_name");
+        String name = jarName.status() == 200 ? new String(jarName.body(), StandardCharsets.UTF_8).trim() : "";
+        if (!Manifest.isFileName(name)) {
+            sendStatus(client, request, 404);
+            return;
+        }
+
+        Path file = cached(cacheDir.resolve("files").resolve("self").resolve(name), target -> {
+            URI uri = Http.resolve(upstream, "mod_sync_jar");
+            Path temp = target.resolveSibling(name + ".tmp");
+            HttpResponse<Path> response;
+            try {
+                response = Http.CLIENT.send(HttpRequest.newBuilder(uri).timeout(Duration.ofMinutes(5)).GET().build(),
+                        HttpResponse.BodyHandlers.ofFile(temp));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while fetching " + uri, e);
+            }
+            if (response.statusCode() != 200) {
+                Files.deleteIfExists(temp);
+                throw new DownloadEngine.HttpStatusException(response.statusCode(), uri);
+            }
+            move(temp, target);
+        });
+        sendFile(client, request, file, "\"" + name + "-" + Files.size(file) + "\"");
+    }
+
+    private interface Fill {
+        void into(Path target) throws IOException;
+    }
+
+    // The cached file, filling it first if needed. Concurrent callers for the same file share one fill.
+    private Path cached(Path file, Fill fill) throws IOException {
+        if (Files.exists(file)) {
+            return file;
+        }
+
+        CompletableFuture<Path> mine = new CompletableFuture<>();
+        CompletableFuture<Path> running = filling.putIfAbsent(file, mine);
+        if (running != null) {
+            return await(running);
+        }
+        try {
+            // Another fill may have finished between the check above and claiming the file
+            if (!Files.exists(file)) {
+                Files.createDirectories(file.getParent());
+                fill.into(file);
+            }
+            mine.complete(file);
+            return file;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            filling.remove(file);
+        }
+    }
+
+    // A text endpoint, revalidated upstream once it is older than TEXT_TTL_MILLIS. Concurrent callers share one
+    // revalidation, and a stale copy is served while the upstream can't be reached.
+    private Text text(String path) throws IOException {
+        Text current = texts.get(path);
+        if (current != null && System.currentTimeMillis() - current.fetchedAt() < TEXT_TTL_MILLIS) {
+            return current;
+        }
+
+        CompletableFuture<Text> mine = new CompletableFuture<>();
+        CompletableFuture<Text> running = refreshing.putIfAbsent(path, mine);
+        if (running != null) {
+            return await(running);
+        }
+        try {
+            Text fresh;
+            try {
+                fresh = fetchText(path);
+            } catch (IOException e) {
+                if (current == null) {
+                    throw e;
+                }
+                out.println("Serving cached " + path + ", upstream failed: " + e);
+                fresh = new Text(current.status(), current.body(), current.etag(), System.currentTimeMillis(), current.entries());
+            }
+            texts.put(path, fresh);
+            mine.complete(fresh);
+            return fresh;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            refreshing.remove(path);
+        }
+    }
+
+    private Text fetchText(String path) throws IOException {
+        Http.Fetched fetched = metadata.fetch(Http.resolve(upstream, path));
+        long now = System.currentTimeMillis();
+        if (fetched.status() == 404 || fetched.body() == null) {
+            return new Text(404, null, null, now, null);
+        }
+
+        byte[] body = fetched.body().getBytes(StandardCharsets.UTF_8);
+        // Derived from the content, so it stays the same across relay restarts and upstream 304s
+        String etag = "\"" + HexFormat.of().formatHex(HashIndex.newSha256().digest(body), 0, 8) + "\"";
+        Map<String, Manifest.Entry> entries = null;
+        if (path.equals("manifest") || path.equals("modlist") || path.startsWith("tree/")) {
+            Manifest manifest = switch (path) {
+                case "manifest" -> Manifest.parse(fetched.body());
+                case "modlist" -> Manifest.parseLegacy(fetched.body());
+                default -> Manifest.parseTree(fetched.body());
+            };
+            entries = new HashMap<>();
+            for (Manifest.Entry entry : manifest.entries()) {
+                entries.put(entry.name(), entry);
+            }
+        }
+        return new Text(200, body, etag, now, entries);
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for upstream", e);
+        }
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.cody.modsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.zip.ZipFile;
+
+// Updates ModSync's own jar from the server's mod_sync_jar, in the same JVM that syncs the mods.
+// The new jar is downloaded into .modsync/self/ and recorded in .modsync/self/pending.txt as
+//     <staged jar>
+//     <where it goes in mods/>
+//     <the jar it replaces>
+// finish() then swaps it in: right away where the OS lets the running jar be deleted, otherwise through the bundled
+// Updater once this JVM has exited. It is loaded from the next launch on. A swap that didn't happen is retried by the
+// next run.
+public class SelfUpdate {
+    private static final long UPDATER_SECONDS = 60;
+
+    private final File gameDir;
+    private final Path selfDir;
+    private final Path pending;
+    private Path jar;
+
+    public SelfUpdate(File gameDir, Path runningJar) {
+        this.gameDir = gameDir;
+        this.selfDir = gameDir.toPath().resolve(".modsync").resolve("self");
+        this.pending = selfDir.resolve("pending.txt");
+        this.jar = runningJar.toAbsolutePath();
+    }
+
+    // The ModSync jar in mods/: the running one until a swap has happened
+    public Path jar() {
+        return jar;
+    }
+
+    // Finishes a swap staged by an earlier run, if the old jar can be replaced now
+    public void finishPending() throws IOException {
+        if (!Files.exists(pending)) {
+            return;
+        }
+        Path target = Path.of(Files.readAllLines(pending).get(1));
+        if (Updater.swap(pending) && Files.exists(target)) {
+            jar = target;
+        }
+    }
+
+    // Downloads the jar the server names and records the swap.
+    // Returns false if that is already the jar in mods/.
+    public boolean stage(URL updateURL, String jarName) throws IOException {
+        if (jarName.equals(jar.getFileName().toString())) {
+            return false;
+        }
+        if (jarName.isEmpty() || jarName.startsWith(".") || jarName.contains("/") || jarName.contains("\\")) {
+            throw new IOException("Invalid ModSync jar name " + jarName);
+        }
+        if (!Files.isRegularFile(jar)) {
+            throw new IOException("ModSync isn't running from a jar: " + jar);
+        }
+
+        Path staged = selfDir.resolve(jarName);
+        List<String> record = List.of(staged.toString(), jar.resolveSibling(jarName).toString(), jar.toString());
+        if (Files.exists(staged) && Files.exists(pending) && Files.readAllLines(pending).equals(record)) {
+            // Downloaded by an earlier run that couldn't swap it in
+            return true;
+        }
+
+        Files.createDirectories(selfDir);
+        clear(selfDir);
+        URI uri = Http.resolve(updateURL, "mod_sync_jar");
+        Path temp = selfDir.resolve(jarName + ".tmp");
+        HttpResponse<Path> response;
+        try {
+            response = Http.CLIENT.send(HttpRequest.newBuilder(uri).timeout(Duration.ofMinutes(5)).GET().build(),
+                    HttpResponse.BodyHandlers.ofFile(temp));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching " + uri, e);
+        }
+        if (response.statusCode() != 200) {
+            Files.deleteIfExists(temp);
+            throw new DownloadEngine.HttpStatusException(response.statusCode(), uri);
+        }
+
+        // An error page swapped in for the jar would leave nothing to update from
+        boolean valid;
+        try (ZipFile zip = new ZipFile(temp.toFile())) {
+            valid = zip.getEntry(Main.class.getName().replace('.', '/') + ".class") != null;
+        } catch (IOException e) {
+            valid = false;
+        }
+        if (!valid) {
+            Files.deleteIfExists(temp);
+            throw new IOException(uri + " is not a ModSync jar");
+        }
+
+        move(temp, staged);
+        Files.write(pending, record);
+        return true;
+    }
+
+    // Swaps a staged jar in, or starts the Updater to do it once this JVM has exited, so call it just before exiting
+    public void finish() throws IOException {
+        if (Updater.swap(pending)) {
+            return;
+        }
+
+        // The Updater can't run from a jar it is about to delete, so it gets its own copy of its class
+        Path classes = gameDir.toPath().resolve(".modsync").resolve("updater");
+        Path classFile = classes.resolve(Updater.class.getName().replace('.', File.separatorChar) + ".class");
+        Files.createDirectories(classFile.getParent());
+        try (InputStream in = Updater.class.getResourceAsStream("Updater.class")) {
+            if (in == null) {
+                throw new IOException("Updater is missing from " + jar);
+            }
+            Files.copy(in, classFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        JvmLauncher.start(gameDir, classes, Updater.class.getName(), true, pending.toString(), Long.toString(UPDATER_SECONDS));
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void clear(Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package com.cody.modsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+// One sync of a game directory's mods/ against the server, without any UI.
+// The stages run in order: fetchManifest, plan, download, commit, verify. fetchAndDownload runs the first three
+// overlapped, for callers that don't need to look at the plan before downloading. syncTrees then does the configured
+// directories besides mods/, see TreeSync.
+// Nothing in mods/ changes before commit, which applies the whole plan at once (see Transaction).
+// Each can be called and timed on its own, which is what the GUI and any tooling build on.
+// Stage timings, per-file results and failures are collected in a SyncReport.
+public class Sync {
+
+    public interface Listener {
+        void status(String message);
+
+        void progress(int done, int total);
+
+        // Called as the mods or the trees start downloading; transferred counts from 0 again for each
+        default void downloadStarted() {}
+
+        // Called from download threads; totalBytes is 0 when the server didn't send sizes
+        default void transferred(long bytes, long totalBytes) {}
+    }
+
+    private interface Stage<T> {
+        T run() throws IOException;
+    }
+
+    // What fetchAndDownload found and staged
+    public record Streamed(Manifest manifest, SyncPlan plan) {}
+
+    private final File gameDir;
+    private final File modsDir;
+    private final SyncConfig config;
+    private final URL updateURL;
+    private final MetadataCache cache;
+    private final HashIndex hashes;
+    // Never touched by the sync, may be null
+    private final Path runningJar;
+    // The directory's own ModSync jar, kept like runningJar when the sync runs from another one (see Headless)
+    private volatile String keptJar;
+    private final SyncReport report;
+    private final Transaction transaction;
+    private final List<TreeSync> trees;
+    // Used instead of the configured store when several syncs share one, and closed by whoever opened it
+    private final ContentStore sharedStore;
+    // Every engine of this sync takes from it, and so do other syncs' engines when it was passed in; null for no limit
+    private final TokenBucket bandwidth;
+
+    public Sync(File gameDir, SyncConfig config, URL updateURL, MetadataCache cache, Path runningJar) {
+        this(gameDir, config, updateURL, cache, runningJar, null, TokenBucket.of(config.bandwidthLimit()));
+    }
+
+    // For several syncs in one process, sharing a store and a bandwidth limit instead of the configured ones
+    Sync(File gameDir, SyncConfig config, URL updateURL, MetadataCache cache, Path runningJar, ContentStore sharedStore, TokenBucket bandwidth) {
+        this.gameDir = gameDir;
+        this.modsDir = new File(gameDir, "mods");
+        this.config = config;
+        this.updateURL = updateURL;
+        this.cache = cache;
+        this.hashes = HashIndex.load(gameDir);
+        this.runningJar = runningJar == null ? null : runningJar.toAbsolutePath();
+        this.report = new SyncReport(updateURL.toString(), gameDir.toPath());
+        this.sharedStore = sharedStore;
+        this.bandwidth = bandwidth;
+        this.transaction = new Transaction(gameDir);
+        this.trees = TreeSync.of(gameDir, config, updateURL, cache, hashes);
+    }
+
+    public Manifest fetchManifest() throws IOException {
+        return timed("fetchManifest", () -> Manifest.fetch(updateURL, cache));
+    }
+
+    public SyncPlan plan(Manifest manifest) throws IOException {
+        return timed("plan", () -> createPlan(manifest));
+    }
+
+    private SyncPlan createPlan(Manifest manifest) throws IOException {
+        SyncPlan plan = SyncPlan.create(manifest, localMods(), hashes);
+        saveCaches(null);
+        return plan;
+    }
+
+    private List<Path> localMods() throws IOException {
+        // A commit cut short last time is settled before mods/ is looked at
+        transaction.recover();
+
+        if (!modsDir.isDirectory() && !modsDir.mkdirs()) {
+            throw new IOException("Mods directory doesn't exist!");
+        }
+
+        File[] modDirList = modsDir.listFiles();
+        if (modDirList == null) {
+            throw new IOException("Failed to list mods directory!");
+        }
+
+        return Arrays.stream(modDirList)
+                .map(file -> file.toPath().toAbsolutePath())
+                .filter(path -> !path.equals(runningJar) && !path.getFileName().toString().equals(keptJar))
+                .collect(Collectors.toList());
+    }
+
+    // fetchManifest, plan and download at once: each entry is planned as the manifest is read, and downloads start
+    // while the rest of it is still arriving. In the report, fetchManifest ends once the manifest has been read and
+    // plan once the held back entries are settled, and download covers the whole stage.
+    public Streamed fetchAndDownload(Listener listener) throws IOException {
+        return timed("download", () -> {
+            SyncPlan.Builder builder = new SyncPlan.Builder(localMods(), hashes, config.delta());
+            listener.status("Fetching mod list");
+            // Grows as entries are queued, -1 once one has no size
+            AtomicLong totalBytes = new AtomicLong();
+
+            transaction.prepare();
+            JarDelta.Bases deltaBases = config.delta() ? builder.deltaBases() : JarDelta.Bases.NONE;
+            ContentStore store = sharedStore != null ? sharedStore : config.openStore();
+            try (DownloadEngine engine = newEngine(store)) {
+                DownloadEngine.Batch batch = engine.start(Mirrors.of(updateURL, config.mirrors()), transaction.stagingDir(), deltaBases,
+                        engineListener(listener, () -> Math.max(0, totalBytes.get())));
+                Manifest.EntryListener queue = entry -> {
+                    totalBytes.accumulateAndGet(entry.size(), (total, size) -> total < 0 || size < 0 ? -1 : total + size);
+                    batch.add(entry);
+                };
+                try {
+                    Manifest manifest = timed("fetchManifest", () -> Manifest.fetch(updateURL, cache, entry -> {
+                        if (builder.add(entry)) {
+                            queue.entry(entry);
+                        }
+                    }));
+                    SyncPlan plan = timed("plan", () -> builder.build(queue));
+                    listener.status("Downloading " + plan.toDownload().size() + " mods");
+                    batch.finish();
+                    return new Streamed(manifest, plan);
+                } catch (IOException | RuntimeException e) {
+                    batch.cancel();
+                    throw e;
+                }
+            } finally {
+                saveCaches(store == sharedStore ? null : store);
+            }
+        });
+    }
+
+    // Downloads into the staging directory; the old jars are still in place, so updated ones can be rebuilt from them
+    public void download(SyncPlan plan, Listener listener) throws IOException {
+        timed("download", () -> {
+            downloadAll(plan, listener);
+            return null;
+        });
+    }
+
+    private void downloadAll(SyncPlan plan, Listener listener) throws IOException {
+        List<Manifest.Entry> toDownload = plan.toDownload();
+        listener.progress(0, toDownload.size());
+        listener.status("Downloading " + toDownload.size() + " mods");
+
+        long totalBytes = toDownload.stream().allMatch(entry -> entry.size() >= 0)
+                ? toDownload.stream().mapToLong(Manifest.Entry::size).sum()
+                : 0;
+
+        transaction.prepare();
+        JarDelta.Bases deltaBases = config.delta() ? plan.deltaBases() : JarDelta.Bases.NONE;
+        ContentStore store = sharedStore != null ? sharedStore : config.openStore();
+        try (DownloadEngine engine = newEngine(store)) {
+            engine.downloadAll(Mirrors.of(updateURL, config.mirrors()), toDownload, transaction.stagingDir(), deltaBases,
+                    engineListener(listener, () -> totalBytes));
+        } finally {
+            saveCaches(store == sharedStore ? null : store);
+        }
+    }
+
+    private DownloadEngine newEngine(ContentStore store) {
+        return new DownloadEngine(config.threads(), DownloadEngine.partsDir(gameDir), hashes, store)
+                .limitBandwidth(bandwidth);
+    }
+
+    private DownloadEngine.Listener engineListener(Listener listener, LongSupplier totalBytes) {
+        listener.downloadStarted();
+        AtomicLong transferred = new AtomicLong();
+        return new DownloadEngine.Listener() {
+            @Override
+            public void fileDone(String name, int done, int total) {
+                listener.status("Downloaded " + name + " (" + done + "/" + total + ")");
+                listener.progress(done, total);
+            }
+
+            @Override
+            public void transferred(long bytes) {
+                listener.transferred(transferred.addAndGet(bytes), totalBytes.getAsLong());
+            }
+
+            @Override
+            public void fileFinished(DownloadEngine.FileResult result) {
+                report.file(result);
+            }
+        };
+    }
+
+    // Swaps the downloads into mods/ and applies renames and removals, see Transaction
+    public void commit(SyncPlan plan, Listener listener) throws IOException {
+        timed("commit", () -> {
+            listener.status("Installing " + plan.toDownload().size() + " mods");
+            transaction.commit(plan);
+            for (Manifest.Entry entry : plan.toDownload()) {
+                if (entry.hasHash()) {
+                    hashes.put(modsDir.toPath().resolve(entry.name()), entry.sha256());
+                }
+            }
+            saveCaches(null);
+            return null;
+        });
+    }
+
+    // Plans every configured tree at once, then downloads and commits each of them, reported as one stage
+    public void syncTrees(Listener listener) throws IOException {
+        if (trees.isEmpty()) {
+            return;
+        }
+        timed("trees", () -> {
+            listener.status("Checking " + trees.stream().map(TreeSync::root).collect(Collectors.joining(", ")));
+            List<TreeSync.Plan> plans = TreeSync.inParallel(trees, TreeSync::plan);
+
+            List<Manifest.Entry> toDownload = plans.stream().flatMap(plan -> plan.toDownload().stream()).toList();
+            long totalBytes = toDownload.stream().mapToLong(entry -> Math.max(0, entry.size())).sum();
+            listener.progress(0, toDownload.size());
+            listener.status("Downloading " + toDownload.size() + " files");
+
+            // No store: it hands out hardlinks, and files in these trees are edited in place, which would reach the
+            // store and every other directory linked to it
+            try (DownloadEngine engine = newEngine(null).fromDirectory("")) {
+                // The trees download side by side, so progress is counted over all of them
+                DownloadEngine.Listener each = engineListener(listener, () -> totalBytes);
+                AtomicInteger done = new AtomicInteger();
+                DownloadEngine.Listener all = new DownloadEngine.Listener() {
+                    @Override
+                    public void fileDone(String name, int fileDone, int fileTotal) {
+                        each.fileDone(name, done.incrementAndGet(), toDownload.size());
+                    }
+
+                    @Override
+                    public void transferred(long bytes) {
+                        each.transferred(bytes);
+                    }
+
+                    @Override
+                    public void fileFinished(DownloadEngine.FileResult result) {
+                        each.fileFinished(result);
+                    }
+                };
+                TreeSync.inParallel(plans, plan -> {
+                    plan.tree().apply(plan, engine, all);
+                    return null;
+                });
+            } finally {
+                saveCaches(null);
+            }
+            return null;
+        });
+    }
+
+    // Restores mods/ and the trees to how they were before the last commit, without the network.
+    // Returns false if there is nothing to roll back.
+    public boolean rollback() throws IOException {
+        return timed("rollback", () -> transaction.rollback() | TreeSync.rollbackAll(gameDir));
+    }
+
+    // Whether mods/ now holds exactly the files the server lists
+    public boolean verify(Manifest manifest) throws IOException {
+        boolean matches = timed("verify", () -> listMatches(manifest));
+        if (!matches) {
+            report.failed("verify", new IOException("Mod list does not match server"));
+        }
+        return matches;
+    }
+
+    private boolean listMatches(Manifest manifest) throws IOException {
+        String[] newMods = modsDir.list();
+        if (newMods == null) {
+            throw new IOException("Failed to list mods directory after download!");
+        }
+
+        String runningJarName = runningJar == null ? null : runningJar.getFileName().toString();
+        Set<String> newModsList = Arrays.stream(newMods)
+                .filter(fileName -> !fileName.equals(runningJarName) && !fileName.equals(keptJar))
+                .collect(Collectors.toSet());
+        Set<String> remoteMods = manifest.entries().stream()
+                .map(Manifest.Entry::name)
+                .collect(Collectors.toSet());
+        return newModsList.equals(remoteMods);
+    }
+
+    // The name the server gives its ModSync jar, or null if it doesn't name one
+    public String fetchJarName() throws IOException {
+        Http.Fetched jarName = cache.fetch(Http.resolve(updateURL, "mod_sync_jar_name"));
+        if (jarName.status() == 404) {
+            return null;
+        }
+        String name = jarName.body().trim();
+        if (!Manifest.isFileName(name)) {
+            throw new IOException("Invalid ModSync jar name " + name);
+        }
+        return name;
+    }
+
+    // Leaves a jar of this name in mods/ alone, for a sync that doesn't run from the directory's own ModSync jar
+    public void keepJar(String name) {
+        keptJar = name;
+    }
+
+    // Records that mods/ now matches the manifest, see PackState. Only a cache, so failing to write it is ignored.
+    public void recordState(Manifest manifest, String jarName) {
+        try {
+            PackState.load(gameDir).record(PackState.modsModified(gameDir), manifest.sha256(), jarName, true);
+        } catch (IOException ignored) {
+            // The next check is a full one instead
+        }
+    }
+
+    public SyncReport report() {
+        return report;
+    }
+
+    // Writes the report to logs/, returning where it went, or null if it couldn't be written
+    public Path writeReport() {
+        try {
+            return report.write(gameDir.toPath().resolve("logs"));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private <T> T timed(String phase, Stage<T> stage) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return stage.run();
+        } catch (IOException | RuntimeException e) {
+            report.failed(phase, e);
+            throw e;
+        } finally {
+            report.phase(phase, (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    private void saveCaches(ContentStore store) {
+        try {
+            hashes.save();
+            if (store != null) {
+                store.close();
+            }
+        } catch (IOException ignored) {
+            // Both are only caches, the next launch just hashes or downloads again
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.cody.modsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Contents of config/modsync.txt.
+// The first non-option line is the update URL, which keeps old single-line configs working.
+// Any other line of the form "key=value" is an option.
+public class SyncConfig {
+    private static final Pattern OPTION = Pattern.compile("^([a-z_]+)\\s*=\\s*(.*)$");
+
+    public static final int DEFAULT_THREADS = 4;
+    public static final long DEFAULT_STORE_MAX_MB = 8192;
+
+    private String url;
+    private int threads = DEFAULT_THREADS;
+    private boolean delta = true;
+    private Path store;
+    private long storeMaxMb = DEFAULT_STORE_MAX_MB;
+    private final List<String> mirrors = new ArrayList<>();
+    private long bandwidthLimitKb;
+    private final List<String> trees = new ArrayList<>();
+    private final List<String> treeIncludes = new ArrayList<>();
+    private final List<String> treeExcludes = new ArrayList<>();
+
+    public static File file(File gameDir) {
+        return new File(gameDir, "config" + File.separator + "modsync.txt");
+    }
+
+    public static SyncConfig read(File file) throws IOException {
+        return parse(Files.readAllLines(file.toPath()));
+    }
+
+    public static SyncConfig parse(List<String> lines) {
+        SyncConfig config = new SyncConfig();
+        for (String rawLine : lines) {
+            String line = rawLine.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            Matcher option = OPTION.matcher(line);
+            if (option.matches()) {
+                config.setOption(option.group(1), option.group(2).trim());
+            } else if (config.url == null) {
+                config.url = line;
+            }
+        }
+        return config;
+    }
+
+    private void setOption(String key, String value) {
+        switch (key) {
+            case "threads" -> threads = Math.max(1, parseInt(key, value));
+            case "delta" -> delta = Boolean.parseBoolean(value);
+            case "store" -> store = switch (value) {
+                case "", "false" -> null;
+                case "true", "default" -> ContentStore.defaultDir();
+                default -> Path.of(value);
+            };
+            case "store_max_mb" -> storeMaxMb = Math.max(0, parseLong(key, value));
+            case "bandwidth_limit" -> bandwidthLimitKb = Math.max(0, parseLong(key, value));
+            // May be given more than once
+            case "mirror" -> {
+                if (!value.isEmpty()) {
+                    mirrors.add(value);
+                }
+            }
+            case "tree" -> {
+                if (!value.isEmpty()) {
+                    trees.add(TreeSync.root(value));
+                }
+            }
+            case "tree_include" -> {
+                if (!value.isEmpty()) {
+                    treeIncludes.add(value);
+                }
+            }
+            case "tree_exclude" -> {
+                if (!value.isEmpty()) {
+                    treeExcludes.add(value);
+                }
+            }
+            default -> {
+                // Unknown options are ignored so older clients can read newer configs
+            }
+        }
+    }
+
+    private static int parseInt(String key, String value) {
+        return (int) Math.min(Integer.MAX_VALUE, parseLong(key, value));
+    }
+
+    private static long parseLong(String key, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + key + ": " + value, e);
+        }
+    }
+
+    // May be null if the file has no URL line
+    public String url() {
+        return url;
+    }
+
+    // Other servers with the same mods/ files; the mod list itself always comes from the update URL
+    public List<String> mirrors() {
+        return mirrors;
+    }
+
+    // Combined download rate limit in bytes per second, 0 if there is none. Configured in KB/s.
+    public long bandwidthLimit() {
+        return bandwidthLimitKb * 1024;
+    }
+
+    // Parallel downloads to start with; they are adjusted from there while downloading
+    public int threads() {
+        return threads;
+    }
+
+    // The shared content store, or null if it isn't enabled
+    public ContentStore openStore() {
+        return store == null ? null : new ContentStore(store, storeMaxMb * 1024 * 1024);
+    }
+
+    // Directories besides mods/ to sync, like "config"; see TreeSync
+    public List<String> trees() {
+        return trees;
+    }
+
+    // Globs over paths from the game directory, like "config/jei/**". Without includes every file of a tree is synced.
+    public List<String> treeIncludes() {
+        return treeIncludes;
+    }
+
+    public List<String> treeExcludes() {
+        return treeExcludes;
+    }
+
+    // Whether updated jars may be rebuilt from the old ones instead of downloaded whole
+    public boolean delta() {
+        return delta;
+    }
+}
@@ -0,0 +1,186 @@
+package com.cody.modsync;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// What has to change locally to match a manifest.
+// With a hashed manifest, files are compared by content, so a jar rebuilt under the same name is replaced
+// and a jar that was only renamed on the server is moved instead of being deleted and downloaded again.
+public class SyncPlan {
+    private final List<Manifest.Entry> toDownload;
+    private final Map<Path, String> toMove;
+    private final List<Path> toRemove;
+    private final Map<String, Path> replacing;
+
+    private SyncPlan(List<Manifest.Entry> toDownload, Map<Path, String> toMove, List<Path> toRemove, Map<String, Path> replacing) {
+        this.toDownload = Collections.unmodifiableList(toDownload);
+        this.toMove = Collections.unmodifiableMap(toMove);
+        this.toRemove = Collections.unmodifiableList(toRemove);
+        this.replacing = Collections.unmodifiableMap(replacing);
+    }
+
+    public static SyncPlan create(Manifest manifest, Collection<Path> localFiles, HashIndex hashes) throws IOException {
+        Builder builder = new Builder(localFiles, hashes);
+        for (Manifest.Entry entry : manifest.entries()) {
+            builder.add(entry);
+        }
+        return builder.build(entry -> {});
+    }
+
+    // Plans while the manifest is still being read, in one pass over its entries against local files indexed by name.
+    // add() tells straight away whether an entry needs downloading, unless a local file has the same content: that one
+    // may turn out to be a rename, which is only known once the whole manifest is in, so build() decides.
+    // With deltas, a new file that replaces nothing is held for build() too, as the jar it could be rebuilt from (its
+    // old version under another name) is only known to be removed then.
+    public static final class Builder {
+        private final Collection<Path> localFiles;
+        private final HashIndex hashes;
+        private final boolean deltas;
+        private final Map<String, Path> localByName = new HashMap<>();
+        private final Set<String> remoteNames = new HashSet<>();
+        // Read by download threads through deltaBases() while entries are still being added
+        private final Map<String, Path> replacing = new ConcurrentHashMap<>();
+        private final List<Path> removals = new CopyOnWriteArrayList<>();
+        private final List<Manifest.Entry> toDownload = new ArrayList<>();
+        private final List<Manifest.Entry> deferred = new ArrayList<>();
+        private final List<Manifest.Entry> held = new ArrayList<>();
+        private Set<String> localHashes;
+
+        public Builder(Collection<Path> localFiles, HashIndex hashes) {
+            this(localFiles, hashes, false);
+        }
+
+        public Builder(Collection<Path> localFiles, HashIndex hashes, boolean deltas) {
+            this.localFiles = localFiles;
+            this.hashes = hashes;
+            this.deltas = deltas;
+            for (Path file : localFiles) {
+                localByName.put(file.getFileName().toString(), file);
+            }
+        }
+
+        // Returns true if the entry has to be downloaded now; ones held back are settled by build()
+        public boolean add(Manifest.Entry entry) throws IOException {
+            remoteNames.add(entry.name());
+            Path local = localByName.get(entry.name());
+            if (local != null && matches(local, entry, hashes)) {
+                return false;
+            }
+            if (entry.hasHash() && localHashes().contains(entry.sha256())) {
+                deferred.add(entry);
+                return false;
+            }
+            if (deltas && entry.hasHash() && local == null && !localFiles.isEmpty()) {
+                held.add(entry);
+                return false;
+            }
+            download(entry);
+            return true;
+        }
+
+        // Entries add() held back that have to be downloaded after all are passed to onDownload
+        public SyncPlan build(Manifest.EntryListener onDownload) throws IOException {
+            List<Path> orphans = new ArrayList<>();
+            for (Path file : localFiles) {
+                if (!remoteNames.contains(file.getFileName().toString())) {
+                    orphans.add(file);
+                }
+            }
+
+            // Files the server no longer lists may have just been renamed
+            Map<String, Path> orphansByHash = new HashMap<>();
+            if (!deferred.isEmpty()) {
+                for (Path orphan : orphans) {
+                    orphansByHash.putIfAbsent(hashes.hash(orphan), orphan);
+                }
+            }
+
+            Map<Path, String> toMove = new LinkedHashMap<>();
+            for (Manifest.Entry entry : deferred) {
+                Path source = orphansByHash.remove(entry.sha256());
+                if (source != null) {
+                    toMove.put(source, entry.name());
+                } else {
+                    download(entry);
+                    onDownload.entry(entry);
+                }
+            }
+
+            List<Path> toRemove = new ArrayList<>(orphans);
+            toRemove.removeAll(toMove.keySet());
+            // Before the held entries are handed out, so they can be rebuilt from what is removed
+            removals.addAll(toRemove);
+            for (Manifest.Entry entry : held) {
+                download(entry);
+                onDownload.entry(entry);
+            }
+            return new SyncPlan(toDownload, toMove, toRemove, replacing);
+        }
+
+        // Old jars downloads can be rebuilt from while the plan is still growing: the jars being replaced so far, and
+        // once build() has run, the ones that will be removed
+        JarDelta.Bases deltaBases() {
+            return new JarDelta.Bases(replacing, Collections.unmodifiableList(removals));
+        }
+
+        private void download(Manifest.Entry entry) {
+            Path local = localByName.get(entry.name());
+            if (local != null) {
+                replacing.put(entry.name(), local);
+            }
+            toDownload.add(entry);
+        }
+
+        // Only needed once something is missing, so an up-to-date pack never hashes files the manifest doesn't list
+        private Set<String> localHashes() throws IOException {
+            if (localHashes == null) {
+                localHashes = new HashSet<>();
+                for (Path file : localFiles) {
+                    localHashes.add(hashes.hash(file));
+                }
+            }
+            return localHashes;
+        }
+    }
+
+    private static boolean matches(Path local, Manifest.Entry entry, HashIndex hashes) throws IOException {
+        if (!entry.hasHash()) {
+            return true;
+        }
+        return Files.size(local) == entry.size() && hashes.hash(local).equals(entry.sha256());
+    }
+
+    public List<Manifest.Entry> toDownload() {
+        return toDownload;
+    }
+
+    // Local file -> new name in the same directory
+    public Map<Path, String> toMove() {
+        return toMove;
+    }
+
+    public List<Path> toRemove() {
+        return toRemove;
+    }
+
+    // Old jars the downloads can be rebuilt from; only valid until the removals are applied
+    JarDelta.Bases deltaBases() {
+        return new JarDelta.Bases(replacing, toRemove);
+    }
+
+    public boolean isEmpty() {
+        return toDownload.isEmpty() && toMove.isEmpty() && toRemove.isEmpty();
+    }
+}
@@ -0,0 +1,146 @@
+package com.cody.modsync;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Machine-readable record of one sync, written to logs/modsync-<time>.json so slow or failed syncs can be looked at later
+public class SyncReport {
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneId.systemDefault());
+    // Older reports beyond this are removed when a new one is written
+    private static final int KEEP_REPORTS = 20;
+
+    private final Instant started = Instant.now();
+    private final String server;
+    private final Path gameDir;
+    private final Map<String, Long> phases = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final List<DownloadEngine.FileResult> files = Collections.synchronizedList(new ArrayList<>());
+    private volatile String failure;
+
+    public SyncReport(String server, Path gameDir) {
+        this.server = server;
+        this.gameDir = gameDir;
+    }
+
+    public void phase(String name, long millis) {
+        phases.merge(name, millis, Long::sum);
+    }
+
+    public void file(DownloadEngine.FileResult result) {
+        files.add(result);
+    }
+
+    // The first failure is kept, as it is the cause; stages wrapped around the one that failed report it again
+    public synchronized void failed(String phase, Throwable error) {
+        if (failure == null) {
+            failure = phase + ": " + error;
+        }
+    }
+
+    public long networkBytes() {
+        synchronized (files) {
+            return files.stream().mapToLong(DownloadEngine.FileResult::networkBytes).sum();
+        }
+    }
+
+    // Null while nothing has failed
+    public String failure() {
+        return failure;
+    }
+
+    public Path write(Path logsDir) throws IOException {
+        Files.createDirectories(logsDir);
+        Path file = logsDir.resolve("modsync-" + FILE_TIME.format(started) + ".json");
+        Files.writeString(file, toJson());
+        prune(logsDir);
+        return file;
+    }
+
+    String toJson() {
+        Instant finished = Instant.now();
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"started\": ").append(quote(started.toString())).append(",\n");
+        json.append("  \"finished\": ").append(quote(finished.toString())).append(",\n");
+        json.append("  \"server\": ").append(quote(server)).append(",\n");
+        json.append("  \"gameDir\": ").append(quote(gameDir.toString())).append(",\n");
+        json.append("  \"success\": ").append(failure == null).append(",\n");
+        if (failure != null) {
+            json.append("  \"failure\": ").append(quote(failure)).append(",\n");
+        }
+
+        json.append("  \"phasesMillis\": {");
+        synchronized (phases) {
+            String separator = "\n";
+            for (Map.Entry<String, Long> phase : phases.entrySet()) {
+                json.append(separator).append("    ").append(quote(phase.getKey())).append(": ").append(phase.getValue());
+                separator = ",\n";
+            }
+        }
+        json.append("\n  },\n");
+
+        long networkBytes = 0;
+        json.append("  \"files\": [");
+        synchronized (files) {
+            String separator = "\n";
+            for (DownloadEngine.FileResult file : files) {
+                networkBytes += file.networkBytes();
+                json.append(separator).append("    {")
+                        .append("\"name\": ").append(quote(file.name()))
+                        .append(", \"source\": ").append(quote(file.source()))
+                        .append(", \"size\": ").append(file.size())
+                        .append(", \"networkBytes\": ").append(file.networkBytes())
+                        .append(", \"latencyMillis\": ").append(file.latencyMillis())
+                        .append(", \"durationMillis\": ").append(file.durationMillis())
+                        .append(", \"retries\": ").append(file.retries())
+                        .append("}");
+                separator = ",\n";
+            }
+        }
+        json.append("\n  ],\n");
+        json.append("  \"networkBytes\": ").append(networkBytes).append(",\n");
+        json.append("  \"totalMillis\": ").append(finished.toEpochMilli() - started.toEpochMilli()).append("\n");
+        return json.append("}\n").toString();
+    }
+
+    private static void prune(Path logsDir) throws IOException {
+        List<Path> reports = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(logsDir, "modsync-*.json")) {
+            stream.forEach(reports::add);
+        }
+        // The timestamp in the name sorts chronologically
+        Collections.sort(reports);
+        for (int i = 0; i < reports.size() - KEEP_REPORTS; i++) {
+            Files.deleteIfExists(reports.get(i));
+        }
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"' -> quoted.append("\\\"");
+                case '\\' -> quoted.append("\\\\");
+                case '\n' -> quoted.append("\\n");
+                case '\r' -> quoted.append("\\r");
+                case '\t' -> quoted.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+                }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
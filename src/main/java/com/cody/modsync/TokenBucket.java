@@ -0,0 +1,42 @@
+package com.cody.modsync;
+
+// Caps the combined download rate of every request that shares it, across engines: one is made per process, see Sync
+// and Headless. Callers take tokens for bytes they have just read and sleep off any debt, which stops them reading until the
+// rate is back under the cap and lets TCP slow the sender down. Up to one second's worth can be used in a burst.
+final class TokenBucket {
+    private final double bytesPerSecond;
+    private final double capacity;
+    private double tokens;
+    private long last = System.nanoTime();
+
+    TokenBucket(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.capacity = bytesPerSecond;
+        this.tokens = capacity;
+    }
+
+    // Null for no limit, which is what 0 means in the config
+    static TokenBucket of(long bytesPerSecond) {
+        return bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond) : null;
+    }
+
+    // On interrupt this returns early with the flag set again, for the caller's next blocking call to notice
+    void take(long bytes) {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - last) * bytesPerSecond / 1e9);
+            last = now;
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens / bytesPerSecond * 1e9) : 0;
+        }
+
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.cody.modsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// Applies a sync plan to mods/ as a journaled transaction.
+// New files are downloaded into .modsync/staging first. Committing then only moves files:
+//     retire   mods/<name> -> .modsync/previous/<name>   (removed and replaced jars)
+//     move     mods/<from> -> mods/<to>                  (renames)
+//     install  .modsync/staging/<name> -> mods/<name>
+// The steps are written to .modsync/journal.txt before any of them runs, and a "committed" line is added once all
+// have. Every step can tell from the files alone whether it already ran, so a commit that was cut short is finished
+// (or undone) on the next sync. Retired jars stay in previous/ until the next commit, so the last commit can be
+// rolled back without the network.
+// Trees synced by TreeSync use the same steps under .modsync/trees/<root>/, with names relative to the game directory.
+public class Transaction {
+    private static final String COMMITTED = "committed";
+
+    private record Step(String action, String name, String target) {
+        static Step parse(String line) throws IOException {
+            String[] parts = line.split("\t");
+            if (parts.length == 2 && (parts[0].equals("retire") || parts[0].equals("install"))) {
+                return new Step(parts[0], parts[1], null);
+            }
+            if (parts.length == 3 && parts[0].equals("move")) {
+                return new Step(parts[0], parts[1], parts[2]);
+            }
+            throw new IOException("Invalid journal line: " + line);
+        }
+
+        @Override
+        public String toString() {
+            return target == null ? action + "\t" + name : action + "\t" + name + "\t" + target;
+        }
+    }
+
+    private final Path targetDir;
+    private final Path stagingDir;
+    private final Path previousDir;
+    private final Path journal;
+
+    public Transaction(File gameDir) {
+        this(gameDir.toPath().resolve("mods"), gameDir.toPath().resolve(".modsync"));
+    }
+
+    // Names are resolved against targetDir, and the staging, previous and journal files kept in stateDir
+    public Transaction(Path targetDir, Path stateDir) {
+        this.targetDir = targetDir;
+        this.stagingDir = stateDir.resolve("staging");
+        this.previousDir = stateDir.resolve("previous");
+        this.journal = stateDir.resolve("journal.txt");
+    }
+
+    // Where downloads go until they are committed
+    public Path stagingDir() {
+        return stagingDir;
+    }
+
+    // Empties the staging directory for a new set of downloads
+    public void prepare() throws IOException {
+        clear(stagingDir);
+        Files.createDirectories(stagingDir);
+    }
+
+    // Finishes a commit that was interrupted, or undoes it if its staged files are gone.
+    // Returns false if there was nothing to recover.
+    public boolean recover() throws IOException {
+        List<String> lines = readJournal();
+        if (lines.isEmpty() || lines.get(lines.size() - 1).equals(COMMITTED)) {
+            return false;
+        }
+
+        List<Step> steps = parse(lines);
+        try {
+            apply(steps);
+            markCommitted(steps);
+        } catch (IOException e) {
+            undo(steps);
+        }
+        clear(stagingDir);
+        return true;
+    }
+
+    // Swaps the staged downloads into mods/. Old jars are kept in previous/ until the next commit.
+    public void commit(SyncPlan plan) throws IOException {
+        List<Step> steps = new ArrayList<>();
+        for (Path file : plan.toRemove()) {
+            steps.add(new Step("retire", file.getFileName().toString(), null));
+        }
+        for (String name : plan.toMove().values()) {
+            if (Files.exists(targetDir.resolve(name))) {
+                steps.add(new Step("retire", name, null));
+            }
+        }
+        for (Manifest.Entry entry : plan.toDownload()) {
+            if (Files.exists(targetDir.resolve(entry.name()))) {
+                steps.add(new Step("retire", entry.name(), null));
+            }
+        }
+        for (Map.Entry<Path, String> move : plan.toMove().entrySet()) {
+            steps.add(new Step("move", move.getKey().getFileName().toString(), move.getValue()));
+        }
+        for (Manifest.Entry entry : plan.toDownload()) {
+            steps.add(new Step("install", entry.name(), null));
+        }
+        commit(steps);
+    }
+
+    // The same for a plan without renames: names to remove, and staged names to install
+    public void commit(Collection<String> remove, Collection<String> install) throws IOException {
+        List<Step> steps = new ArrayList<>();
+        for (String name : remove) {
+            steps.add(new Step("retire", name, null));
+        }
+        for (String name : install) {
+            if (Files.exists(targetDir.resolve(name))) {
+                steps.add(new Step("retire", name, null));
+            }
+        }
+        for (String name : install) {
+            steps.add(new Step("install", name, null));
+        }
+        commit(steps);
+    }
+
+    private void commit(List<Step> steps) throws IOException {
+        if (steps.isEmpty()) {
+            // Nothing changes, so the last generation stays available
+            return;
+        }
+
+        // The last generation is dropped before the new journal exists, so previous/ only ever holds files the
+        // journal's retire steps put there
+        Files.deleteIfExists(journal);
+        clear(previousDir);
+        Files.createDirectories(previousDir);
+        writeJournal(steps.stream().map(Step::toString).toList());
+
+        apply(steps);
+        markCommitted(steps);
+        clear(stagingDir);
+    }
+
+    // Puts mods/ back the way it was before the last commit, finished or not.
+    // Returns false if there is no commit to undo.
+    public boolean rollback() throws IOException {
+        List<String> lines = readJournal();
+        if (lines.isEmpty()) {
+            return false;
+        }
+        undo(parse(lines));
+        clear(stagingDir);
+        return true;
+    }
+
+    private void apply(List<Step> steps) throws IOException {
+        for (Step step : steps) {
+            switch (step.action()) {
+                case "retire" -> {
+                    Path previous = previousDir.resolve(step.name());
+                    Path current = targetDir.resolve(step.name());
+                    if (!Files.exists(previous) && Files.exists(current)) {
+                        move(current, previous);
+                    }
+                }
+                case "move" -> {
+                    Path from = targetDir.resolve(step.name());
+                    if (Files.exists(from)) {
+                        move(from, targetDir.resolve(step.target()));
+                    }
+                }
+                case "install" -> {
+                    Path staged = stagingDir.resolve(step.name());
+                    Path installed = targetDir.resolve(step.name());
+                    if (Files.exists(staged)) {
+                        move(staged, installed);
+                    } else if (!Files.exists(installed)) {
+                        throw new IOException("Staged file " + staged + " is missing");
+                    }
+                }
+                default -> throw new IllegalStateException(step.action());
+            }
+        }
+    }
+
+    private void undo(List<Step> steps) throws IOException {
+        List<Step> reversed = new ArrayList<>(steps);
+        Collections.reverse(reversed);
+        for (Step step : reversed) {
+            switch (step.action()) {
+                case "install" -> {
+                    // Only installed if it left staging; otherwise the file in mods/ is the old one
+                    if (!Files.exists(stagingDir.resolve(step.name()))) {
+                        Files.deleteIfExists(targetDir.resolve(step.name()));
+                    }
+                }
+                case "move" -> {
+                    Path from = targetDir.resolve(step.name());
+                    Path to = targetDir.resolve(step.target());
+                    if (!Files.exists(from) && Files.exists(to)) {
+                        move(to, from);
+                    }
+                }
+                case "retire" -> {
+                    Path previous = previousDir.resolve(step.name());
+                    if (Files.exists(previous)) {
+                        move(previous, targetDir.resolve(step.name()));
+                    }
+                }
+                default -> throw new IllegalStateException(step.action());
+            }
+        }
+        Files.deleteIfExists(journal);
+    }
+
+    private static List<Step> parse(List<String> lines) throws IOException {
+        List<Step> steps = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            if (!line.equals(COMMITTED)) {
+                steps.add(Step.parse(line));
+            }
+        }
+        return steps;
+    }
+
+    private List<String> readJournal() throws IOException {
+        return Files.exists(journal) ? Files.readAllLines(journal) : List.of();
+    }
+
+    private void markCommitted(List<Step> steps) throws IOException {
+        List<String> lines = new ArrayList<>(steps.size() + 1);
+        steps.forEach(step -> lines.add(step.toString()));
+        lines.add(COMMITTED);
+        writeJournal(lines);
+    }
+
+    // Synced to disk before it replaces the old journal, so a crash leaves one or the other
+    private void writeJournal(List<String> lines) throws IOException {
+        Files.createDirectories(journal.getParent());
+        Path temp = journal.resolveSibling(journal.getFileName() + ".tmp");
+        Files.write(temp, lines);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        move(temp, journal);
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        Files.createDirectories(to.getParent());
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Trees stage whole directory structures, so this goes all the way down
+    private static void clear(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                if (Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+                    clear(file);
+                }
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package com.cody.modsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+// Syncs a directory besides mods/, such as config/, resourcepacks/, shaderpacks/ or kubejs/, configured with "tree="
+// lines. The server lists each tree at tree/<root> as "<sha256> <size> <path>" lines, paths relative to the root, and
+// serves the files at <root>/<path>; a server without the listing leaves the tree alone.
+// Only paths matching a tree_include glob (any, if there are none) and no tree_exclude glob are synced. A file the
+// server stops listing is removed only if an earlier sync installed it and it hasn't been changed since, so files the
+// player made, like their own shader settings, stay.
+// The listing of each directory is fingerprinted, and the fingerprints are kept in .modsync/trees/<root>/state.txt
+// with each directory's modification time after the sync. A directory whose fingerprint and time both still match is
+// skipped without looking at its files, so an unchanged tree costs one stat per directory rather than per file.
+// Edits in place don't touch the directory's time; those files are put back once the server changes their directory.
+public class TreeSync {
+    private static final String STATE_FILE = "state.txt";
+    // ModSync's own files in config/
+    private static final List<String> ALWAYS_EXCLUDED = List.of("config/modsync*");
+
+    // What a sync of one tree would do. entries is everything the tree should hold once it is done.
+    public record Plan(TreeSync tree, boolean served, List<Manifest.Entry> entries, List<Manifest.Entry> toDownload,
+                       List<String> toRemove, boolean stale) {
+        public boolean isEmpty() {
+            return toDownload.isEmpty() && toRemove.isEmpty();
+        }
+    }
+
+    // The tree as the last sync left it
+    private record State(Map<String, Manifest.Entry> entries, Map<String, Long> dirModified) {}
+
+    public interface Task<T, R> {
+        R run(T item) throws IOException;
+    }
+
+    private final Path gameDir;
+    private final String root;
+    private final List<Pattern> includes;
+    private final List<Pattern> excludes;
+    private final URL updateURL;
+    private final MetadataCache cache;
+    private final HashIndex hashes;
+    private final Path stateDir;
+    private final Transaction transaction;
+
+    public TreeSync(File gameDir, String root, SyncConfig config, URL updateURL, MetadataCache cache, HashIndex hashes) {
+        this.gameDir = gameDir.toPath();
+        this.root = root;
+        this.includes = config.treeIncludes().stream().map(TreeSync::glob).toList();
+        this.excludes = new ArrayList<>();
+        ALWAYS_EXCLUDED.forEach(exclude -> excludes.add(glob(exclude)));
+        config.treeExcludes().forEach(exclude -> excludes.add(glob(exclude)));
+        this.updateURL = updateURL;
+        this.cache = cache;
+        this.hashes = hashes;
+        this.stateDir = stateDir(gameDir).resolve(root.replace('/', '_'));
+        // Names are paths from the game directory, so one transaction covers the whole tree
+        this.transaction = new Transaction(this.gameDir, stateDir);
+    }
+
+    public static List<TreeSync> of(File gameDir, SyncConfig config, URL updateURL, MetadataCache cache, HashIndex hashes) {
+        return config.trees().stream()
+                .map(root -> new TreeSync(gameDir, root, config, updateURL, cache, hashes))
+                .toList();
+    }
+
+    private static Path stateDir(File gameDir) {
+        return gameDir.toPath().resolve(".modsync").resolve("trees");
+    }
+
+    public String root() {
+        return root;
+    }
+
+    // Checks a configured root, like "config" or "kubejs/server_scripts". mods/ is synced on its own.
+    static String root(String value) {
+        String root = value.replace('\\', '/');
+        while (root.endsWith("/")) {
+            root = root.substring(0, root.length() - 1);
+        }
+        if (!Manifest.isRelativePath(root) || root.equals("mods") || root.startsWith("mods/") || root.startsWith(".modsync")) {
+            throw new IllegalArgumentException("Invalid tree: " + value);
+        }
+        return root;
+    }
+
+    // "*" and "?" stay within a directory, "**" crosses them, and "**/" also matches no directory at all
+    static Pattern glob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (glob.startsWith("**/", i)) {
+                regex.append("(?:.*/)?");
+                i += 2;
+            } else if (glob.startsWith("**", i)) {
+                regex.append(".*");
+                i++;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private boolean managed(String path) {
+        return (includes.isEmpty() || includes.stream().anyMatch(include -> include.matcher(path).matches()))
+                && excludes.stream().noneMatch(exclude -> exclude.matcher(path).matches());
+    }
+
+    // Compares the server's listing with the tree, looking only into directories that changed on either side
+    public Plan plan() throws IOException {
+        // A commit cut short last time is settled before the tree is looked at
+        transaction.recover();
+
+        Manifest manifest = Manifest.fetchTree(updateURL, root, cache);
+        if (manifest == null) {
+            return new Plan(this, false, List.of(), List.of(), List.of(), false);
+        }
+        Map<String, Manifest.Entry> remote = new HashMap<>();
+        for (Manifest.Entry entry : manifest.entries()) {
+            if (!Manifest.isRelativePath(entry.name())) {
+                throw new IOException("Invalid path in tree " + root + ": " + entry.name());
+            }
+            String path = root + "/" + entry.name();
+            if (managed(path)) {
+                remote.put(path, new Manifest.Entry(path, entry.size(), entry.sha256()));
+            }
+        }
+
+        State state = loadState();
+        Map<String, List<Manifest.Entry>> remoteDirs = byDirectory(remote.values());
+        Map<String, List<Manifest.Entry>> previousDirs = byDirectory(state.entries().values().stream()
+                .filter(entry -> managed(entry.name()))
+                .toList());
+        Set<String> dirs = new TreeSet<>(remoteDirs.keySet());
+        dirs.addAll(previousDirs.keySet());
+
+        List<Manifest.Entry> toDownload = new ArrayList<>();
+        List<String> toRemove = new ArrayList<>();
+        boolean stale = false;
+        for (String dir : dirs) {
+            List<Manifest.Entry> files = remoteDirs.getOrDefault(dir, List.of());
+            List<Manifest.Entry> previous = previousDirs.getOrDefault(dir, List.of());
+            long modified = modified(gameDir.resolve(dir));
+            if (modified >= 0 && Long.valueOf(modified).equals(state.dirModified().get(dir))
+                    && fingerprint(files).equals(fingerprint(previous))) {
+                continue;
+            }
+
+            stale = true;
+            for (Manifest.Entry entry : files) {
+                if (!matches(entry)) {
+                    toDownload.add(entry);
+                }
+            }
+            for (Manifest.Entry entry : previous) {
+                if (!remote.containsKey(entry.name()) && matches(entry)) {
+                    toRemove.add(entry.name());
+                }
+            }
+        }
+
+        List<Manifest.Entry> entries = remote.values().stream()
+                .sorted(Comparator.comparing(Manifest.Entry::name))
+                .toList();
+        if (stale && toDownload.isEmpty() && toRemove.isEmpty()) {
+            // Directories only touched locally, for example config/ by ModSync's own files, already match, so their
+            // new times are recorded and the next check skips them again
+            saveState(entries);
+            stale = false;
+        }
+        return new Plan(this, true, entries, toDownload, toRemove, stale);
+    }
+
+    // Downloads into the tree's staging directory, then swaps the files in and removes the old ones in one transaction
+    public void apply(Plan plan, DownloadEngine engine, DownloadEngine.Listener listener) throws IOException {
+        if (!plan.isEmpty()) {
+            transaction.prepare();
+            engine.downloadAll(Mirrors.single(updateURL), plan.toDownload(), transaction.stagingDir(), JarDelta.Bases.NONE, listener);
+            transaction.commit(plan.toRemove(), plan.toDownload().stream().map(Manifest.Entry::name).toList());
+            for (Manifest.Entry entry : plan.toDownload()) {
+                hashes.put(gameDir.resolve(entry.name()), entry.sha256());
+            }
+        }
+        if (plan.stale()) {
+            saveState(plan.entries());
+        }
+    }
+
+    // Restores every tree to how it was before its last commit. Returns false if there was nothing to roll back.
+    public static boolean rollbackAll(File gameDir) throws IOException {
+        Path trees = stateDir(gameDir);
+        if (!Files.isDirectory(trees)) {
+            return false;
+        }
+        boolean rolledBack = false;
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(trees)) {
+            for (Path dir : dirs) {
+                if (new Transaction(gameDir.toPath(), dir).rollback()) {
+                    rolledBack = true;
+                }
+            }
+        }
+        return rolledBack;
+    }
+
+    // Runs task for each item at once, returning the results in order or the first failure once all have finished
+    public static <T, R> List<R> inParallel(List<T> items, Task<T, R> task) throws IOException {
+        if (items.isEmpty()) {
+            return List.of();
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(items.size(), runnable -> {
+            Thread thread = new Thread(runnable, "ModSync tree");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<CompletableFuture<R>> runs = items.stream()
+                    .map(item -> CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return task.run(item);
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                    }, pool))
+                    .toList();
+            // Joining each in turn waits for all of them, so no tree is left half done behind a failure
+            List<R> results = new ArrayList<>();
+            IOException failure = null;
+            for (CompletableFuture<R> run : runs) {
+                try {
+                    results.add(run.join());
+                } catch (CompletionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException ioException ? ioException : new IOException(e.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Whether the file is there with the listed contents; the hash comes from the index while the file is unchanged
+    private boolean matches(Manifest.Entry entry) throws IOException {
+        Path file = gameDir.resolve(entry.name());
+        try {
+            return Files.isRegularFile(file)
+                    && (entry.size() < 0 || Files.size(file) == entry.size())
+                    && hashes.hash(file).equals(entry.sha256());
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private static Map<String, List<Manifest.Entry>> byDirectory(Iterable<Manifest.Entry> entries) {
+        Map<String, List<Manifest.Entry>> dirs = new TreeMap<>();
+        for (Manifest.Entry entry : entries) {
+            String name = entry.name();
+            dirs.computeIfAbsent(name.substring(0, name.lastIndexOf('/')), dir -> new ArrayList<>()).add(entry);
+        }
+        return dirs;
+    }
+
+    // Changes whenever a file directly in the directory is listed, dropped or changed on the server
+    private static String fingerprint(List<Manifest.Entry> entries) {
+        MessageDigest digest = HashIndex.newSha256();
+        entries.stream()
+                .sorted(Comparator.comparing(Manifest.Entry::name))
+                .forEach(entry -> digest.update((entry.sha256() + " " + entry.size() + " " + entry.name() + "\n").getBytes(StandardCharsets.UTF_8)));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // -1 if the directory isn't there
+    private static long modified(Path dir) {
+        try {
+            return Files.getLastModifiedTime(dir).toMillis();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    // Each line is either "<sha256> <size> <path>" for a file the last sync installed or kept, or
+    // "dir <mtime> <path>" for a directory as that sync left it
+    private State loadState() {
+        Map<String, Manifest.Entry> entries = new HashMap<>();
+        Map<String, Long> dirModified = new HashMap<>();
+        try {
+            for (String line : Files.readAllLines(stateDir.resolve(STATE_FILE))) {
+                String[] parts = line.split(" ", 3);
+                if (parts.length != 3) {
+                    continue;
+                }
+                if (parts[0].equals("dir")) {
+                    dirModified.put(parts[2], Long.parseLong(parts[1]));
+                } else {
+                    entries.put(parts[2], new Manifest.Entry(parts[2], Long.parseLong(parts[1]), parts[0]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Without a state every directory is looked at, and nothing is removed
+            return new State(Map.of(), Map.of());
+        }
+        return new State(entries, dirModified);
+    }
+
+    private void saveState(List<Manifest.Entry> entries) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (Manifest.Entry entry : entries) {
+            lines.add(entry.sha256() + " " + entry.size() + " " + entry.name());
+        }
+        for (String dir : byDirectory(entries).keySet()) {
+            long modified = modified(gameDir.resolve(dir));
+            if (modified >= 0) {
+                lines.add("dir " + modified + " " + dir);
+            }
+        }
+
+        Files.createDirectories(stateDir);
+        Path temp = stateDir.resolve(STATE_FILE + ".tmp");
+        Files.write(temp, lines);
+        try {
+            Files.move(temp, stateDir.resolve(STATE_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, stateDir.resolve(STATE_FILE), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.cody.modsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+
+// The in-game check for whether mods/ matches the server.
+// The verdict is kept in PackState with the modification time of mods/, and server metadata goes through the
+// MetadataCache, so while neither side changes a launch costs one stat and one round trip of conditional requests.
+// Configured trees besides mods/ are checked alongside, through TreeSync's per-directory state.
+public class UpdateCheck {
+    private final URL updateUrl;
+    private final File gameDir;
+    private final File modsDir;
+    private final MetadataCache cache;
+    private final SyncConfig config;
+    // Loaded once something needs it, and shared by the mods/ and tree checks
+    private HashIndex hashes;
+
+    public UpdateCheck(URL updateUrl, File gameDir, SyncConfig config) {
+        this.updateUrl = updateUrl;
+        this.config = config;
+        this.gameDir = gameDir;
+        this.modsDir = new File(gameDir, "mods");
+        this.cache = MetadataCache.forGameDir(gameDir);
+    }
+
+    // Runs the check on its own thread so the caller can give up waiting without cancelling it
+    public CompletableFuture<Boolean> start() {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                result.complete(isUpToDate());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        }, "ModSync update check");
+        thread.setDaemon(true);
+        thread.start();
+        return result;
+    }
+
+    public boolean isUpToDate() throws IOException {
+        // A commit cut short last time is settled before anything else, so whatever the check finds or however long it
+        // takes, the game never loads a half swapped mods/
+        new Transaction(gameDir).recover();
+
+        // Taken before anything else looks at mods/, so a change made meanwhile is seen by the next check
+        long modsModified = PackState.modsModified(gameDir);
+        // If modsDir is invalid, let the GUI handle it
+        if (modsModified < 0) {
+            return false;
+        }
+
+        PackState state = PackState.load(gameDir);
+        boolean modsUnchanged = state.modsUnchanged(modsModified);
+
+        // Known to be out of date, for example because last launch's check finished too late to act on
+        if (modsUnchanged && Boolean.FALSE.equals(state.upToDate())) {
+            return false;
+        }
+
+        // Get server manifest and the name of the ModSync jar itself, revalidating both and the trees at once
+        CompletableFuture<Boolean> treesFuture = treesUpToDate();
+        URI jarNameUri = Http.resolve(updateUrl, "mod_sync_jar_name");
+        CompletableFuture<Manifest.Listing> listingFuture = Manifest.fetchListingAsync(updateUrl, cache);
+        CompletableFuture<Http.Fetched> jarNameFuture = cache.fetchAsync(jarNameUri);
+        Manifest.Listing listing = Http.await(listingFuture, Http.resolve(updateUrl, "manifest"));
+        Http.Fetched jarName = Http.await(jarNameFuture, jarNameUri);
+        if (jarName.status() == 404) {
+            throw new IOException("Server has no mod_sync_jar_name");
+        }
+        String modSyncJarName = jarName.body().trim();
+
+        boolean upToDate;
+        String listingSha256 = listing.sha256();
+        if (modsUnchanged && state.matches(listingSha256, modSyncJarName)) {
+            upToDate = state.upToDate();
+        } else {
+            upToDate = modsMatch(listing.parse(), modSyncJarName);
+            state.record(modsModified, listingSha256, modSyncJarName, upToDate);
+        }
+
+        boolean treesUpToDate;
+        try {
+            treesUpToDate = treesFuture.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ioException ? ioException : new IOException(e.getCause());
+        }
+        if (hashes != null) {
+            hashes.save();
+        }
+        return upToDate && treesUpToDate;
+    }
+
+    private boolean modsMatch(Manifest manifest, String modSyncJarName) throws IOException {
+        File[] localModList = modsDir.listFiles();
+        if (localModList == null || Arrays.stream(localModList).noneMatch(file -> file.getName().equals(modSyncJarName))) {
+            return false;
+        }
+        List<Path> localMods = Arrays.stream(localModList)
+                .filter(file -> !file.getName().equals(modSyncJarName))
+                .map(File::toPath)
+                .collect(Collectors.toList());
+        return SyncPlan.create(manifest, localMods, hashes()).isEmpty();
+    }
+
+    private CompletableFuture<Boolean> treesUpToDate() {
+        if (config.trees().isEmpty()) {
+            return CompletableFuture.completedFuture(true);
+        }
+        List<TreeSync> trees = TreeSync.of(gameDir, config, updateUrl, cache, hashes());
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return TreeSync.inParallel(trees, TreeSync::plan).stream().allMatch(TreeSync.Plan::isEmpty);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, runnable -> {
+            Thread thread = new Thread(runnable, "ModSync tree check");
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
+    private synchronized HashIndex hashes() {
+        if (hashes == null) {
+            hashes = HashIndex.load(gameDir);
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,81 @@
+package com.cody.modsync;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+// The bundled updater: puts a jar staged by SelfUpdate in place of the old ModSync jar once nothing holds the old
+// one open any more. SelfUpdate copies this class out of the jar and runs it on its own, so it may only use java.base:
+//     java -cp .modsync/updater com.cody.modsync.Updater <pending file> [<seconds to keep trying>]
+public final class Updater {
+    private static final long RETRY_MILLIS = 250;
+
+    private Updater() {}
+
+    public static void main(String[] args) throws InterruptedException {
+        Path pending = Path.of(args[0]);
+        long deadline = System.currentTimeMillis() + (args.length > 1 ? Long.parseLong(args[1]) : 60) * 1000;
+        while (true) {
+            try {
+                if (swap(pending)) {
+                    return;
+                }
+            } catch (IOException e) {
+                System.out.println("ModSync update failed: " + e);
+                System.exit(1);
+            }
+            if (System.currentTimeMillis() > deadline) {
+                // The record stays, so the next run of ModSync tries again
+                System.out.println("ModSync jar still in use, giving up for now");
+                System.exit(1);
+            }
+            Thread.sleep(RETRY_MILLIS);
+        }
+    }
+
+    // Moves the staged jar into mods/ and deletes the old one, then drops the record.
+    // Returns false, with the staged jar put back, while the old jar can't be deleted yet (it is open on Windows).
+    // A swap that was cut short is finished by calling this again.
+    static boolean swap(Path pending) throws IOException {
+        if (!Files.exists(pending)) {
+            return true;
+        }
+        List<String> lines = Files.readAllLines(pending);
+        if (lines.size() != 3) {
+            Files.delete(pending);
+            throw new IOException("Invalid update record " + pending);
+        }
+        Path staged = Path.of(lines.get(0));
+        Path target = Path.of(lines.get(1));
+        Path old = Path.of(lines.get(2));
+
+        if (!Files.exists(staged) && !Files.exists(target)) {
+            // The staged jar is gone, so there is nothing to install
+            Files.delete(pending);
+            return true;
+        }
+        if (Files.exists(staged)) {
+            move(staged, target);
+        }
+        try {
+            Files.deleteIfExists(old);
+        } catch (IOException e) {
+            // Both jars would be loaded by the game, so mods/ keeps the old one until it can go
+            move(target, staged);
+            return false;
+        }
+        Files.delete(pending);
+        return true;
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
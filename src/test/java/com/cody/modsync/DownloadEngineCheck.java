@@ -0,0 +1,120 @@
+package com.cody.modsync;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// Checks DownloadEngine against a StandInServer that takes a while to answer each file:
+// downloads run in parallel but never more at once than the engine may use, connections are reused, every file is
+// fetched once and lands intact, progress counts each file once and ends at the total, byte progress adds up to the
+// pack, and a file the server doesn't have fails the whole batch.
+// Exits with 1 if any check fails.
+public class DownloadEngineCheck {
+    private static final int FILES = 40;
+    private static final int THREADS = 4;
+    private static final long LATENCY_MILLIS = 200;
+
+    private static final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("modsync-engine-check");
+        try (StandInServer server = new StandInServer(StandInServer.Behaviour.NORMAL).latency(LATENCY_MILLIS)) {
+            List<StandInServer.PackFile> pack = StandInServer.pack(FILES, StandInServer.SizeDistribution.parse("small"), 1);
+            server.serve(pack);
+            parallelDownload(server, pack, dir);
+            missingFile(server, pack, dir);
+        } finally {
+            delete(dir);
+        }
+
+        failures.forEach(failure -> System.out.println("FAILED: " + failure));
+        System.out.println(failures.isEmpty() ? "All checks passed" : failures.size() + " checks failed");
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    private static void parallelDownload(StandInServer server, List<StandInServer.PackFile> pack, Path dir) throws IOException {
+        Path mods = Files.createDirectories(dir.resolve("parallel"));
+        Map<Integer, Integer> doneCounts = new ConcurrentHashMap<>();
+        List<Integer> totals = new ArrayList<>();
+        AtomicLong transferred = new AtomicLong();
+        DownloadEngine.Listener listener = new DownloadEngine.Listener() {
+            @Override
+            public void fileDone(String name, int done, int total) {
+                doneCounts.merge(done, 1, Integer::sum);
+                synchronized (totals) {
+                    totals.add(total);
+                }
+            }
+
+            @Override
+            public void transferred(long bytes) {
+                transferred.addAndGet(bytes);
+            }
+        };
+
+        long started = System.nanoTime();
+        try (DownloadEngine engine = new DownloadEngine(THREADS, dir.resolve("parts"))) {
+            engine.downloadAll(server.url(), pack.stream().map(StandInServer.PackFile::entry).toList(), mods, listener);
+        }
+        long millis = (System.nanoTime() - started) / 1_000_000;
+        System.out.println(FILES + " files in " + millis + " ms, " + server.maxInFlight() + " at once over "
+                + server.connections() + " connections");
+
+        // The adaptive limit may go up to twice the configured threads
+        check(server.maxInFlight() > 1, "downloads ran one at a time");
+        check(server.maxInFlight() <= THREADS * 2, server.maxInFlight() + " downloads at once with " + THREADS + " threads");
+        check(millis < FILES * LATENCY_MILLIS / 2, "took " + millis + " ms, about as long as one at a time");
+        check(server.connections() <= THREADS * 2, server.connections() + " connections for " + server.requests() + " requests");
+
+        for (StandInServer.PackFile file : pack) {
+            check(server.fileRequests(file.name()) == 1, file.name() + " requested " + server.fileRequests(file.name()) + " times");
+            Path downloaded = mods.resolve(file.name());
+            check(Files.exists(downloaded) && Arrays.equals(Files.readAllBytes(downloaded), file.data()), file.name() + " doesn't match");
+        }
+
+        for (int done = 1; done <= FILES; done++) {
+            check(doneCounts.getOrDefault(done, 0) == 1, "progress reported " + done + "/" + FILES + " " + doneCounts.getOrDefault(done, 0) + " times");
+        }
+        check(doneCounts.size() == FILES, "progress reported " + doneCounts.size() + " distinct counts");
+        check(totals.stream().allMatch(total -> total == FILES), "progress totals other than " + FILES + ": " + totals);
+        long bytes = pack.stream().mapToLong(file -> file.data().length).sum();
+        check(transferred.get() == bytes, "byte progress added up to " + transferred.get() + " of " + bytes);
+    }
+
+    private static void missingFile(StandInServer server, List<StandInServer.PackFile> pack, Path dir) throws IOException {
+        Path mods = Files.createDirectories(dir.resolve("missing"));
+        List<Manifest.Entry> entries = new ArrayList<>(pack.stream().map(StandInServer.PackFile::entry).toList());
+        entries.add(new Manifest.Entry("missing.jar", 1024, "0".repeat(64)));
+
+        IOException failure = null;
+        try (DownloadEngine engine = new DownloadEngine(THREADS, dir.resolve("parts"))) {
+            engine.downloadAll(server.url(), entries, mods, (name, done, total) -> {});
+        } catch (IOException e) {
+            failure = e;
+        }
+        check(failure != null, "a batch with a file the server doesn't have succeeded");
+        check(!Files.exists(mods.resolve("missing.jar")), "the missing file was written");
+    }
+
+    private static void check(boolean passed, String failure) {
+        if (!passed) {
+            failures.add(failure);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.cody.modsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Checks that the in-game UpdateCheck settles a commit that was cut short before the game gets to load mods/.
+// Each game directory is left the way a sync killed mid-commit leaves it: journal.txt without its "committed" line,
+// the old mod-1.jar retired to previous/ and the new one still in staging/.
+//   finished   with the new jar staged, the commit is finished and the check finds mods/ up to date
+//   offline    the same with the server gone: the check fails, and mods/ is finished all the same
+//   undone     with the staged jar lost, the commit is undone and the old jar is back in mods/
+// Exits with 1 if any check fails.
+public class LaunchRecoveryCheck {
+    private static final String JAR_NAME = "modsync.jar";
+
+    private static final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        List<StandInServer.PackFile> pack = StandInServer.pack(3, StandInServer.SizeDistribution.parse("small"), 1);
+        // What mod-1.jar was before the commit
+        StandInServer.PackFile old = StandInServer.file("mod-1.jar", 1024, 2);
+
+        Path dir = Files.createTempDirectory("modsync-recovery-check");
+        try {
+            try (StandInServer server = new StandInServer(StandInServer.Behaviour.NORMAL)) {
+                server.serve(pack);
+                Path gameDir = interrupted(dir.resolve("finished"), pack, old, true);
+                boolean upToDate = new UpdateCheck(server.url(), gameDir.toFile(), config(server)).isUpToDate();
+                System.out.println("finished: up to date " + upToDate);
+                check(upToDate, "the check didn't find the finished commit up to date");
+                checkMods("finished", gameDir, pack.get(1));
+                check(Files.readAllLines(gameDir.resolve(".modsync/journal.txt")).contains("committed"), "finished: the journal wasn't marked committed");
+
+                gameDir = interrupted(dir.resolve("undone"), pack, old, false);
+                upToDate = new UpdateCheck(server.url(), gameDir.toFile(), config(server)).isUpToDate();
+                System.out.println("undone: up to date " + upToDate);
+                check(!upToDate, "the check found mods/ up to date with the old jar back");
+                checkMods("undone", gameDir, old);
+                check(!Files.exists(gameDir.resolve(".modsync/journal.txt")), "undone: the journal is still there");
+            }
+
+            StandInServer gone = new StandInServer(StandInServer.Behaviour.NORMAL);
+            gone.close();
+            Path gameDir = interrupted(dir.resolve("offline"), pack, old, true);
+            IOException failure = null;
+            try {
+                new UpdateCheck(gone.url(), gameDir.toFile(), config(gone)).isUpToDate();
+            } catch (IOException e) {
+                failure = e;
+            }
+            System.out.println("offline: " + failure);
+            check(failure != null, "the check succeeded without a server");
+            checkMods("offline", gameDir, pack.get(1));
+        } finally {
+            delete(dir);
+        }
+
+        failures.forEach(failure -> System.out.println("FAILED: " + failure));
+        System.out.println(failures.isEmpty() ? "All checks passed" : failures.size() + " checks failed");
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    private static SyncConfig config(StandInServer server) {
+        return SyncConfig.parse(List.of(server.url().toString()));
+    }
+
+    // A game directory whose commit of pack stopped after retiring old, with the new mod-1.jar staged if staged is set
+    private static Path interrupted(Path gameDir, List<StandInServer.PackFile> pack, StandInServer.PackFile old, boolean staged) throws IOException {
+        Path mods = Files.createDirectories(gameDir.resolve("mods"));
+        Path state = gameDir.resolve(".modsync");
+        Files.write(mods.resolve(JAR_NAME), new byte[] {0});
+        Files.write(mods.resolve("mod-0.jar"), pack.get(0).data());
+        Files.write(mods.resolve("mod-2.jar"), pack.get(2).data());
+        Files.write(Files.createDirectories(state.resolve("previous")).resolve("mod-1.jar"), old.data());
+        Files.createDirectories(state.resolve("staging"));
+        if (staged) {
+            Files.write(state.resolve("staging/mod-1.jar"), pack.get(1).data());
+        }
+        Files.write(state.resolve("journal.txt"), List.of("retire\tmod-1.jar", "install\tmod-1.jar"));
+        return gameDir;
+    }
+
+    private static void checkMods(String what, Path gameDir, StandInServer.PackFile expected) throws IOException {
+        Path jar = gameDir.resolve("mods").resolve(expected.name());
+        check(Files.exists(jar) && Arrays.equals(Files.readAllBytes(jar), expected.data()), what + ": mods/" + expected.name() + " isn't the expected one");
+        String[] staging = new File(gameDir.toFile(), ".modsync/staging").list();
+        check(staging == null || staging.length == 0, what + ": staging wasn't cleared");
+    }
+
+    private static void check(boolean passed, String failure) {
+        if (!passed) {
+            failures.add(failure);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
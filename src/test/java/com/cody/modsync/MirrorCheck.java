@@ -0,0 +1,137 @@
+package com.cody.modsync;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+// Checks mirror handling against four StandInServers serving the same pack: a normal one, a slowed one, one that
+// always answers 500 and one that corrupts every file it sends.
+//   ranking    the slowed mirror is ranked below the normal one, even when it is the update URL
+//   failover   with the failing or corrupting mirror first, every file still lands intact, from the normal mirror.
+//              The failing one is set aside by its probe; the corrupting one answers probes and is only failed over
+//              from, file by file, once its downloads miss their hash.
+//   segmented  a large jar is assembled from ranges of the normal and slowed mirrors, the normal one serving more;
+//              with the corrupting mirror among the sources the assembled file fails its hash and is fetched whole
+// Exits with 1 if any check fails.
+public class MirrorCheck {
+    private static final int LARGE_BYTES = 40 * 1024 * 1024;
+
+    private static final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        List<StandInServer.PackFile> pack = new ArrayList<>(StandInServer.pack(10, StandInServer.SizeDistribution.parse("small"), 1));
+        StandInServer.PackFile large = StandInServer.file("large.jar", LARGE_BYTES, 2);
+        pack.add(large);
+
+        Path dir = Files.createTempDirectory("modsync-mirror-check");
+        try (StandInServer normal = new StandInServer(StandInServer.Behaviour.NORMAL);
+             StandInServer slow = new StandInServer(StandInServer.Behaviour.SLOW).slowed(400, 4 * 1024 * 1024);
+             StandInServer failing = new StandInServer(StandInServer.Behaviour.FAILING);
+             StandInServer corrupting = new StandInServer(StandInServer.Behaviour.CORRUPTING)) {
+            for (StandInServer server : List.of(normal, slow, failing, corrupting)) {
+                server.serve(pack);
+            }
+            List<StandInServer.PackFile> small = pack.subList(0, pack.size() - 1);
+
+            ranking(normal, slow);
+            failover("failing", failing, normal, small, dir.resolve("failover-500"));
+            failover("corrupting", corrupting, normal, small, dir.resolve("failover-corrupt"));
+            segmented(normal, slow, large, dir.resolve("segmented"));
+            corruptSegments(normal, corrupting, large, dir.resolve("segmented-corrupt"));
+        } finally {
+            delete(dir);
+        }
+
+        failures.forEach(failure -> System.out.println("FAILED: " + failure));
+        System.out.println(failures.isEmpty() ? "All checks passed" : failures.size() + " checks failed");
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    private static void ranking(StandInServer normal, StandInServer slow) throws IOException {
+        Mirrors mirrors = Mirrors.of(slow.url(), List.of(normal.url().toString()));
+        mirrors.probe("mods/mod-0.jar");
+        System.out.print("ranking after probe:\n" + mirrors);
+        check(mirrors.ranked().get(0).toString().equals(normal.url().toString()), "slowed mirror ranked first: " + mirrors.ranked());
+    }
+
+    private static void failover(String what, StandInServer bad, StandInServer normal, List<StandInServer.PackFile> files, Path dir) throws IOException {
+        bad.resetCounters();
+        normal.resetCounters();
+        Map<String, DownloadEngine.FileResult> results = download(Mirrors.of(bad.url(), List.of(normal.url().toString())), files, dir);
+        System.out.println("failover from " + what + " mirror: " + bad.requests() + " requests to it, " + normal.requests() + " to the normal one");
+
+        for (StandInServer.PackFile file : files) {
+            check(matches(dir.resolve(file.name()), file), file.name() + " doesn't match after failing over from the " + what + " mirror");
+            check(results.containsKey(file.name()), file.name() + " wasn't reported with the " + what + " mirror first");
+        }
+        check(bad.requests() > 0, "the " + what + " mirror was never asked");
+    }
+
+    private static void segmented(StandInServer normal, StandInServer slow, StandInServer.PackFile large, Path dir) throws IOException {
+        normal.resetCounters();
+        slow.resetCounters();
+        Map<String, DownloadEngine.FileResult> results = download(Mirrors.of(normal.url(), List.of(slow.url().toString())), List.of(large), dir);
+        DownloadEngine.FileResult result = results.get(large.name());
+        System.out.println("segmented: " + result + ", ranges from normal " + normal.fileRequests(large.name())
+                + ", from slowed " + slow.fileRequests(large.name()));
+
+        check(matches(dir.resolve(large.name()), large), "segmented " + large.name() + " doesn't match");
+        check(result != null && result.source().equals("segmented"), large.name() + " wasn't downloaded in segments: " + result);
+        check(slow.fileRequests(large.name()) > 0, "the slowed mirror served no ranges");
+        check(normal.fileRequests(large.name()) > slow.fileRequests(large.name()), "the slowed mirror served as many ranges as the normal one");
+    }
+
+    private static void corruptSegments(StandInServer normal, StandInServer corrupting, StandInServer.PackFile large, Path dir) throws IOException {
+        corrupting.resetCounters();
+        Map<String, DownloadEngine.FileResult> results = download(Mirrors.of(normal.url(), List.of(corrupting.url().toString())), List.of(large), dir);
+        DownloadEngine.FileResult result = results.get(large.name());
+        System.out.println("segmented with a corrupting mirror: " + result + ", " + corrupting.fileRequests(large.name()) + " requests to it");
+
+        check(corrupting.fileRequests(large.name()) > 0, "the corrupting mirror served no ranges");
+        check(matches(dir.resolve(large.name()), large), large.name() + " doesn't match with a corrupting mirror among the sources");
+        check(result != null && !result.source().equals("segmented"), "corrupted segments were accepted: " + result);
+    }
+
+    private static Map<String, DownloadEngine.FileResult> download(Mirrors mirrors, List<StandInServer.PackFile> files, Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Map<String, DownloadEngine.FileResult> results = new ConcurrentHashMap<>();
+        DownloadEngine.Listener listener = new DownloadEngine.Listener() {
+            @Override
+            public void fileDone(String name, int done, int total) {}
+
+            @Override
+            public void fileFinished(DownloadEngine.FileResult result) {
+                results.put(result.name(), result);
+            }
+        };
+        try (DownloadEngine engine = new DownloadEngine(4, dir.resolve(".parts"))) {
+            engine.downloadAll(mirrors, files.stream().map(StandInServer.PackFile::entry).toList(), dir, JarDelta.Bases.NONE, listener);
+        }
+        return results;
+    }
+
+    private static boolean matches(Path path, StandInServer.PackFile file) throws IOException {
+        return Files.exists(path) && Arrays.equals(Files.readAllBytes(path), file.data());
+    }
+
+    private static void check(boolean passed, String failure) {
+        if (!passed) {
+            failures.add(failure);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.cody.modsync;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// A local stand-in for a ModSync server, for the checks and the benchmark in this directory.
+// Serves a synthetic pack the way a plain file server would: manifest, mod_sync_jar_name and mods/<name> with ETags,
+// conditional requests, HEAD and byte ranges. How it misbehaves is set by its Behaviour, so several of them can stand
+// in for mirrors of differing quality.
+public class StandInServer implements AutoCloseable {
+    private static final Pattern RANGE = Pattern.compile("^bytes=(\\d+)-(\\d*)$");
+    private static final int WRITE_BYTES = 64 * 1024;
+
+    public enum Behaviour {
+        NORMAL,
+        // Waits before answering and sends slowly, see slowed()
+        SLOW,
+        // Answers every request with a 500
+        FAILING,
+        // Flips a byte in every body it sends for a file
+        CORRUPTING
+    }
+
+    // One file of the pack, with its content made up from a seed
+    public record PackFile(String name, byte[] data, String sha256) {
+        public Manifest.Entry entry() {
+            return new Manifest.Entry(name, data.length, sha256);
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "Stand-in server");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Behaviour behaviour;
+    private volatile Map<String, PackFile> pack = Map.of();
+    private volatile String manifest = "";
+    private volatile long delayMillis;
+    private volatile long bytesPerSecond;
+    private volatile long handlerMillis;
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final Map<String, AtomicInteger> fileRequests = new ConcurrentHashMap<>();
+    // Client ports seen, one per connection
+    private final Set<Integer> connections = ConcurrentHashMap.newKeySet();
+
+    public StandInServer(Behaviour behaviour) throws IOException {
+        this.behaviour = behaviour;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    // How a SLOW server misbehaves: a wait before each answer and a cap on how fast each body is sent
+    public StandInServer slowed(long delayMillis, long bytesPerSecond) {
+        this.delayMillis = delayMillis;
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    // Time each file request takes before answering, like round trips to a distant server; 0 for none
+    public StandInServer latency(long millis) {
+        this.handlerMillis = millis;
+        return this;
+    }
+
+    public URL url() {
+        try {
+            return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void serve(List<PackFile> files) {
+        Map<String, PackFile> byName = new LinkedHashMap<>();
+        StringBuilder text = new StringBuilder();
+        for (PackFile file : files) {
+            byName.put(file.name(), file);
+            text.append(file.sha256()).append(' ').append(file.data().length).append(' ').append(file.name()).append('\n');
+        }
+        pack = byName;
+        manifest = text.toString();
+    }
+
+    public int requests() {
+        return requests.get();
+    }
+
+    public long bytesSent() {
+        return bytesSent.get();
+    }
+
+    public int maxInFlight() {
+        return maxInFlight.get();
+    }
+
+    public int connections() {
+        return connections.size();
+    }
+
+    // GET requests for mods/<name>, ranges included
+    public int fileRequests(String name) {
+        AtomicInteger count = fileRequests.get(name);
+        return count == null ? 0 : count.get();
+    }
+
+    public void resetCounters() {
+        requests.set(0);
+        bytesSent.set(0);
+        maxInFlight.set(0);
+        fileRequests.clear();
+        connections.clear();
+    }
+
+    // A pack of count files named mod-<n>.jar with sizes from the distribution, the same for the same seed
+    public static List<PackFile> pack(int count, SizeDistribution sizes, long seed) {
+        Random random = new Random(seed);
+        List<PackFile> files = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            files.add(file("mod-" + i + ".jar", sizes.next(random), random.nextLong()));
+        }
+        return files;
+    }
+
+    public static PackFile file(String name, int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return new PackFile(name, data, sha256(data));
+    }
+
+    private static String sha256(byte[] data) {
+        return HexFormat.of().formatHex(HashIndex.newSha256().digest(data));
+    }
+
+    // File sizes to draw from: "small" (10-200 KB), "mixed" (like a real pack: mostly small jars, some of a few MB
+    // and a handful up to 40 MB), "large" (5-40 MB) or a fixed number of bytes
+    public interface SizeDistribution {
+        int next(Random random);
+
+        static SizeDistribution parse(String name) {
+            return switch (name) {
+                case "small" -> random -> between(random, 10 * 1024, 200 * 1024);
+                case "mixed" -> random -> {
+                    double roll = random.nextDouble();
+                    if (roll < 0.80) {
+                        return between(random, 10 * 1024, 500 * 1024);
+                    }
+                    return roll < 0.97 ? between(random, 500 * 1024, 5 * 1024 * 1024) : between(random, 5 * 1024 * 1024, 40 * 1024 * 1024);
+                };
+                case "large" -> random -> between(random, 5 * 1024 * 1024, 40 * 1024 * 1024);
+                default -> {
+                    int size = Integer.parseInt(name);
+                    yield random -> size;
+                }
+            };
+        }
+
+        private static int between(Random random, int min, int max) {
+            return min + random.nextInt(max - min);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        connections.add(exchange.getRemoteAddress().getPort());
+        int now = inFlight.incrementAndGet();
+        maxInFlight.accumulateAndGet(now, Math::max);
+        try (exchange) {
+            if (behaviour == Behaviour.SLOW) {
+                sleep(delayMillis);
+            }
+            if (behaviour == Behaviour.FAILING) {
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals("/manifest")) {
+                sendText(exchange, manifest);
+            } else if (path.equals("/mod_sync_jar_name")) {
+                sendText(exchange, "modsync.jar");
+            } else if (path.startsWith("/mods/")) {
+                PackFile file = pack.get(URLDecoder.decode(path.substring("/mods/".length()), StandardCharsets.UTF_8));
+                if (file == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else {
+                    sendFile(exchange, file);
+                }
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+            }
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void sendText(HttpExchange exchange, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        String etag = "\"" + sha256(body).substring(0, 16) + "\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        send(exchange, 200, body, 0, body.length);
+    }
+
+    private void sendFile(HttpExchange exchange, PackFile file) throws IOException {
+        byte[] data = file.data();
+        String etag = "\"" + file.sha256().substring(0, 16) + "\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.getResponseHeaders().set("Content-Length", Integer.toString(data.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        fileRequests.computeIfAbsent(file.name(), name -> new AtomicInteger()).incrementAndGet();
+        sleep(handlerMillis);
+
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        Matcher matcher = range == null ? null : RANGE.matcher(range);
+        if (matcher == null || !matcher.matches() || (ifRange != null && !ifRange.equals(etag))) {
+            send(exchange, 200, data, 0, data.length);
+            return;
+        }
+
+        long start = Long.parseLong(matcher.group(1));
+        long last = matcher.group(2).isEmpty() ? data.length - 1 : Math.min(data.length - 1, Long.parseLong(matcher.group(2)));
+        if (start >= data.length) {
+            exchange.getResponseHeaders().set("Content-Range", "bytes */" + data.length);
+            exchange.sendResponseHeaders(416, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + last + "/" + data.length);
+        send(exchange, 206, data, (int) start, (int) (last - start + 1));
+    }
+
+    private void send(HttpExchange exchange, int status, byte[] data, int offset, int length) throws IOException {
+        exchange.sendResponseHeaders(status, length);
+        byte[] body = data;
+        if (behaviour == Behaviour.CORRUPTING && length > 0 && exchange.getRequestURI().getPath().startsWith("/mods/")) {
+            body = data.clone();
+            body[offset + length / 2] ^= 1;
+        }
+        OutputStream out = exchange.getResponseBody();
+        for (int written = 0; written < length; ) {
+            int chunk = Math.min(WRITE_BYTES, length - written);
+            out.write(body, offset + written, chunk);
+            written += chunk;
+            bytesSent.addAndGet(chunk);
+            if (behaviour == Behaviour.SLOW && bytesPerSecond > 0) {
+                sleep(chunk * 1000L / bytesPerSecond);
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
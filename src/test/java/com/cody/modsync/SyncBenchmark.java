@@ -0,0 +1,201 @@
+package com.cody.modsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// Times each stage of a sync against a StandInServer serving a synthetic pack:
+//   check     the in-game UpdateCheck a launch starts with
+//   manifest  fetching and parsing the manifest
+//   diff      planning against mods/, hashing whatever the hash index doesn't know
+//   download  into staging, commit  swapping into mods/, verify  listing mods/ against the manifest
+// in three scenarios, each on its own game directory:
+//   cold       an empty game directory
+//   warm       a synced one, after the server changed --changed percent of the files
+//   no-change  a synced one, with nothing changed on the server
+// Usage: SyncBenchmark [--files 250] [--sizes mixed] [--changed 10] [--threads 4] [--warmup 2] [--iterations 5]
+// --sizes is small, mixed, large or a fixed number of bytes, see StandInServer.SizeDistribution.
+// Prints the median and fastest time of each stage in milliseconds.
+public class SyncBenchmark {
+    private static final String JAR_NAME = "modsync.jar";
+    private static final List<String> STAGES = List.of("check", "manifest", "diff", "download", "commit", "verify", "total");
+    private static final Sync.Listener QUIET = new Sync.Listener() {
+        @Override
+        public void status(String message) {}
+
+        @Override
+        public void progress(int done, int total) {}
+    };
+
+    private interface Stage<T> {
+        T run() throws IOException;
+    }
+
+    private final StandInServer server;
+    private final List<StandInServer.PackFile> pack;
+    private final List<StandInServer.PackFile> changedPack;
+    private final SyncConfig config;
+    private final Path root;
+    private boolean servingChanged;
+
+    private SyncBenchmark(StandInServer server, List<StandInServer.PackFile> pack, List<StandInServer.PackFile> changedPack, int threads, Path root) {
+        this.server = server;
+        this.pack = pack;
+        this.changedPack = changedPack;
+        this.config = SyncConfig.parse(List.of(server.url().toString(), "threads=" + threads));
+        this.root = root;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(Map.of(
+                "files", "250", "sizes", "mixed", "changed", "10", "threads", "4", "warmup", "2", "iterations", "5"));
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--") || !options.containsKey(args[i].substring(2))) {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        int files = Integer.parseInt(options.get("files"));
+        StandInServer.SizeDistribution sizes = StandInServer.SizeDistribution.parse(options.get("sizes"));
+        int warmup = Integer.parseInt(options.get("warmup"));
+        int iterations = Integer.parseInt(options.get("iterations"));
+
+        List<StandInServer.PackFile> pack = StandInServer.pack(files, sizes, 1);
+        List<StandInServer.PackFile> changedPack = changed(pack, Integer.parseInt(options.get("changed")), sizes);
+        long bytes = pack.stream().mapToLong(file -> file.data().length).sum();
+        System.out.printf("%d files, %.1f MB (%s), %s%% changed in warm runs, %s threads, %d iterations after %d warmup%n",
+                files, bytes / 1048576.0, options.get("sizes"), options.get("changed"), options.get("threads"), iterations, warmup);
+
+        Path root = Files.createTempDirectory("modsync-benchmark");
+        try (StandInServer server = new StandInServer(StandInServer.Behaviour.NORMAL)) {
+            SyncBenchmark benchmark = new SyncBenchmark(server, pack, changedPack, Integer.parseInt(options.get("threads")), root);
+            System.out.printf("%-10s", "");
+            STAGES.forEach(stage -> System.out.printf("%18s", stage));
+            System.out.println();
+            for (String scenario : List.of("cold", "warm", "no-change")) {
+                benchmark.run(scenario, warmup, iterations);
+            }
+        } finally {
+            delete(root);
+        }
+        // The shared HTTP client's threads would keep the JVM around for a while
+        System.exit(0);
+    }
+
+    // The pack with percent of its files given new content of a new size
+    private static List<StandInServer.PackFile> changed(List<StandInServer.PackFile> pack, int percent, StandInServer.SizeDistribution sizes) {
+        Random random = new Random(2);
+        List<StandInServer.PackFile> changed = new ArrayList<>();
+        for (StandInServer.PackFile file : pack) {
+            changed.add(random.nextInt(100) < percent ? StandInServer.file(file.name(), sizes.next(random), random.nextLong()) : file);
+        }
+        return changed;
+    }
+
+    private void run(String scenario, int warmup, int iterations) throws IOException {
+        File gameDir = root.resolve(scenario).toFile();
+        Map<String, List<Long>> samples = new LinkedHashMap<>();
+        STAGES.forEach(stage -> samples.put(stage, new ArrayList<>()));
+
+        for (int i = 0; i < warmup + iterations; i++) {
+            switch (scenario) {
+                case "cold" -> {
+                    delete(gameDir.toPath());
+                    serve(false);
+                }
+                case "warm" -> {
+                    if (i == 0) {
+                        serve(false);
+                        sync(gameDir, null);
+                    }
+                    // Going back and forth changes the same files every time
+                    serve(!servingChanged);
+                }
+                case "no-change" -> {
+                    if (i == 0) {
+                        serve(false);
+                        sync(gameDir, null);
+                    }
+                }
+                default -> throw new IllegalArgumentException(scenario);
+            }
+
+            Map<String, Long> times = sync(gameDir, scenario.equals("no-change"));
+            if (i >= warmup) {
+                times.forEach((stage, nanos) -> samples.get(stage).add(nanos));
+            }
+        }
+
+        System.out.printf("%-10s", scenario);
+        for (String stage : STAGES) {
+            List<Long> sorted = samples.get(stage).stream().sorted().toList();
+            System.out.printf("%18s", String.format("%.1f (%.1f)", sorted.get(sorted.size() / 2) / 1e6, sorted.get(0) / 1e6));
+        }
+        System.out.println();
+    }
+
+    private void serve(boolean changed) {
+        server.serve(changed ? changedPack : pack);
+        servingChanged = changed;
+    }
+
+    // One launch: the update check and then, like Main, a full sync. The check has to say upToDate, unless that's null.
+    private Map<String, Long> sync(File gameDir, Boolean upToDate) throws IOException {
+        Map<String, Long> times = new LinkedHashMap<>();
+        Path jar = gameDir.toPath().resolve("mods").resolve(JAR_NAME);
+        if (!Files.exists(jar)) {
+            Files.createDirectories(jar.getParent());
+            Files.write(jar, new byte[] {0});
+        }
+
+        long start = System.nanoTime();
+        boolean checked = timed(times, "check", () -> new UpdateCheck(server.url(), gameDir, config).isUpToDate());
+        if (upToDate != null && checked != upToDate) {
+            throw new IllegalStateException("Update check said " + checked + " for " + gameDir);
+        }
+        Sync sync = new Sync(gameDir, config, server.url(), MetadataCache.forGameDir(gameDir), null);
+        sync.keepJar(JAR_NAME);
+        Manifest manifest = timed(times, "manifest", sync::fetchManifest);
+        SyncPlan plan = timed(times, "diff", () -> sync.plan(manifest));
+        timed(times, "download", () -> {
+            sync.download(plan, QUIET);
+            return null;
+        });
+        timed(times, "commit", () -> {
+            sync.commit(plan, QUIET);
+            return null;
+        });
+        if (!timed(times, "verify", () -> sync.verify(manifest))) {
+            throw new IllegalStateException("mods/ doesn't match the server after syncing " + gameDir);
+        }
+        sync.recordState(manifest, JAR_NAME);
+        times.put("total", System.nanoTime() - start);
+        return times;
+    }
+
+    private static <T> T timed(Map<String, Long> times, String stage, Stage<T> run) throws IOException {
+        long start = System.nanoTime();
+        T result = run.run();
+        times.put(stage, System.nanoTime() - start);
+        return result;
+    }
+
+    private static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
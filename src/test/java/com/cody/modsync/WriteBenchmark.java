@@ -0,0 +1,113 @@
+package com.cody.modsync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// Compares ways of writing large jars from a StandInServer to disk, one file at a time:
+//   copy         Files.copy of the response body, how downloads were written before they were hashed
+//   copy+hash    the same and then reading the file again to hash it, what checking it that way would cost
+//   stream       DownloadEngine, writing through a FileChannel and hashing the bytes as they go by
+// Usage: WriteBenchmark [--files 4] [--size 67108864] [--warmup 2] [--iterations 5]
+// Prints the median and fastest throughput of each in MB/s.
+public class WriteBenchmark {
+    private static final List<String> MODES = List.of("copy", "copy+hash", "stream");
+
+    private interface Mode {
+        void download(StandInServer.PackFile file, Path dir) throws IOException, InterruptedException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(Map.of("files", "4", "size", "67108864", "warmup", "2", "iterations", "5"));
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--") || !options.containsKey(args[i].substring(2))) {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        int warmup = Integer.parseInt(options.get("warmup"));
+        int iterations = Integer.parseInt(options.get("iterations"));
+
+        List<StandInServer.PackFile> pack = StandInServer.pack(Integer.parseInt(options.get("files")),
+                StandInServer.SizeDistribution.parse(options.get("size")), 1);
+        long bytes = pack.stream().mapToLong(file -> file.data().length).sum();
+        System.out.printf("%d files, %.1f MB, %d iterations after %d warmup%n", pack.size(), bytes / 1048576.0, iterations, warmup);
+
+        Path root = Files.createTempDirectory("modsync-write-benchmark");
+        try (StandInServer server = new StandInServer(StandInServer.Behaviour.NORMAL);
+             DownloadEngine engine = new DownloadEngine(1, root.resolve("parts"))) {
+            server.serve(pack);
+            Map<String, Mode> modes = new LinkedHashMap<>();
+            modes.put("copy", (file, dir) -> copy(server, file, dir));
+            modes.put("copy+hash", (file, dir) -> {
+                Path copied = copy(server, file, dir);
+                if (!HashIndex.sha256(copied).equals(file.sha256())) {
+                    throw new IOException(file.name() + " does not match its hash");
+                }
+            });
+            modes.put("stream", (file, dir) -> engine.downloadAll(server.url(), List.of(file.entry()), dir, (name, done, total) -> {}));
+
+            Map<String, List<Double>> samples = new LinkedHashMap<>();
+            MODES.forEach(mode -> samples.put(mode, new ArrayList<>()));
+            // Taking turns spreads whatever the machine is doing meanwhile over all of them
+            for (int i = 0; i < warmup + iterations; i++) {
+                for (String mode : MODES) {
+                    Path dir = Files.createDirectories(root.resolve(mode));
+                    long start = System.nanoTime();
+                    for (StandInServer.PackFile file : pack) {
+                        modes.get(mode).download(file, dir);
+                    }
+                    long nanos = System.nanoTime() - start;
+                    if (i >= warmup) {
+                        samples.get(mode).add(bytes / 1048576.0 / (nanos / 1e9));
+                    }
+                    delete(dir);
+                }
+            }
+
+            for (String mode : MODES) {
+                List<Double> sorted = samples.get(mode).stream().sorted(Comparator.reverseOrder()).toList();
+                System.out.printf("%-10s %8.1f MB/s (%.1f)%n", mode, sorted.get(sorted.size() / 2), sorted.get(0));
+            }
+        } finally {
+            delete(root);
+        }
+        // The shared HTTP client's threads would keep the JVM around for a while
+        System.exit(0);
+    }
+
+    private static Path copy(StandInServer server, StandInServer.PackFile file, Path dir) throws IOException, InterruptedException {
+        URI uri = Http.resolve(server.url(), "mods/" + file.name());
+        HttpResponse<InputStream> response = Http.CLIENT.send(HttpRequest.newBuilder(uri).GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+        Path target = dir.resolve(file.name());
+        try (InputStream in = response.body()) {
+            if (response.statusCode() != 200) {
+                throw new IOException("Received error code " + response.statusCode() + " from " + uri);
+            }
+            Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return target;
+    }
+
+    private static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}